@@ -36,6 +36,16 @@ const byte SOLAR_VALVE_II_RELAY_PIN = 6;  //Valve II, the second solar three way
 // Control variables
 const long DISCONNECT_TIMOUT = 180000;
 long lastConnectTime;
+
+// Serial protocol, starts in ASCII and switches to binary frames when the master offers it ("B1" after a reply)
+// Binary frame: [SYNC][version][sequence][5 x int16 centi C][actuators][CRC-16 high][CRC-16 low]
+// Binary acknowledgement: [SYNC][version][sequence][actuators][CRC-16 high][CRC-16 low]
+const byte FRAME_SYNC = 0xA5;
+const byte PROTOCOL_VERSION = 1;
+const byte FRAME_LENGTH = 16;
+const byte ACK_LENGTH = 6;
+boolean binaryProtocol = false;
+byte frameSequence = 0;
 const float COOLING_DOWN_MARGIN = 0.5;
 
 // Thermometer devices DALLAS DS18B20+ with the OneWire protocol
@@ -99,7 +109,8 @@ void loop() {
 
   // Override when connection with master is lost
   if (lastConnectTime + DISCONNECT_TIMOUT < millis()) {
-    //Connection lost, go to native mode
+    //Connection lost, go to native mode and fall back to the ASCII protocol a new master will understand
+    binaryProtocol = false;
     solarValveControl();
     Serial.println(F("log: lost connection, going native control"));
   }
@@ -113,6 +124,10 @@ void loop() {
 }
 
 void uploadToMaster() {
+  if (binaryProtocol) {
+    uploadBinaryToMaster();
+    return;
+  }
   Serial.print(sensorTlh);
   Serial.print(':');
   Serial.print(sensorTlm);
@@ -130,29 +145,100 @@ void uploadToMaster() {
   Serial.println(solarPumpState ? 'T' : 'F');
 }
 
+void uploadBinaryToMaster() {
+  byte frame[FRAME_LENGTH];
+  frame[0] = FRAME_SYNC;
+  frame[1] = PROTOCOL_VERSION;
+  frame[2] = ++frameSequence;
+  float temperatures[5] = {sensorTlh, sensorTlm, sensorTll, sensorTin, sensorTout};
+  for (byte i = 0; i < 5; i++) {
+    int centi = (int)round(temperatures[i] * 100.0);
+    frame[3 + 2*i] = highByte(centi);
+    frame[4 + 2*i] = lowByte(centi);
+  }
+  frame[13] = (solarValveIstate ? 1 : 0) | (solarValveIIstate ? 2 : 0) | (solarPumpState ? 4 : 0);
+  uint16_t crc = crc16(frame + 1, FRAME_LENGTH - 3);
+  frame[14] = highByte(crc);
+  frame[15] = lowByte(crc);
+  Serial.write(frame, FRAME_LENGTH);
+}
+
 void receiveFromMaster() {
-  //line format: [valveI:T|F][valveII:T|F][solarPump:T|F]
-  boolean receivedStates[3];
+  if (binaryProtocol) {
+    receiveBinaryFromMaster();
+    return;
+  }
+  //line format: [valveI:T|F][valveII:T|F][solarPump:T|F], optionally followed by the binary offer [B][version]
+  char received[5];
   short i = 0;
   while (Serial.available()) {
     char c = Serial.read();
-    if (i < 3) {
-      receivedStates[i] = (c == 'T');
+    if (i < 5) {
+      received[i] = c;
     }
     i++;
   }
 
-  if (i == 3) {
+  if (i == 3 || (i == 5 && received[3] == 'B' && received[4] == '0' + PROTOCOL_VERSION)) {
     lastConnectTime = millis();
-    solarPumpState = receivedStates[2];
-    solarValveIstate = receivedStates[0];
-    solarValveIIstate = receivedStates[1];
+    solarValveIstate = (received[0] == 'T');
+    solarValveIIstate = (received[1] == 'T');
+    solarPumpState = (received[2] == 'T');
+    setState();
+    if (i == 5) {
+      binaryProtocol = true;
+      Serial.println(F("log: switched to binary protocol"));
+    }
+  } else {
+    Serial.println(F("log: received unexpected master command"));
+  }
+}
+
+void receiveBinaryFromMaster() {
+  byte ack[ACK_LENGTH];
+  byte i = 0;
+  boolean accepted = false;
+  while (Serial.available()) {
+    byte b = Serial.read();
+    if (i == 0 && b != FRAME_SYNC) {
+      continue;
+    }
+    ack[i++] = b;
+    if (i == ACK_LENGTH) {
+      i = 0;
+      uint16_t crc = crc16(ack + 1, ACK_LENGTH - 3);
+      if (ack[1] == PROTOCOL_VERSION && ack[4] == highByte(crc) && ack[5] == lowByte(crc)) {
+        // Acknowledgements of older frames still carry the latest command
+        accepted = true;
+        lastConnectTime = millis();
+        solarValveIstate = ack[3] & 1;
+        solarValveIIstate = ack[3] & 2;
+        solarPumpState = ack[3] & 4;
+      }
+    }
+  }
+
+  if (accepted) {
     setState();
   } else {
     Serial.println(F("log: received unexpected master command"));
   }
 }
 
+/**
+* CRC-16/CCITT-FALSE, same as FrameDecoder.crc16 in the master
+*/
+uint16_t crc16(byte *data, byte length) {
+  uint16_t crc = 0xFFFF;
+  for (byte i = 0; i < length; i++) {
+    crc ^= (uint16_t)data[i] << 8;
+    for (byte bit = 0; bit < 8; bit++) {
+      crc = (crc & 0x8000) ? (crc << 1) ^ 0x1021 : crc << 1;
+    }
+  }
+  return crc;
+}
+
 /**
  * Native control, activated when the master is not connected
  * Either the system is in recycle mode or it is heating up the large boiler
@@ -0,0 +1,306 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Alert rules evaluated on the frame stream, on the SolarSlave Redis writer thread.
+ *
+ * Rules are declared in /etc/iot.conf:
+ *
+ * alert.rules=flowReversed,noFrames
+ * alert.rule.flowReversed.when=pipe.TflowIn - pipe.TflowOut < 0
+ * alert.rule.flowReversed.state=boiler500
+ * alert.rule.flowReversed.for=600
+ * alert.rule.noFrames.when=frameAgeSeconds > 30
+ *
+ * when is [variable] [+|- variable] [<|<=|>|>=|==|!=] [number]. The variables are the sensor keys,
+ * frameAgeSeconds, missingSensors (in the last frame) and stateChangesPerHour (of solarState). state limits a rule
+ * to these solarStates, for is the number of seconds the condition must hold before the rule fires (debounce),
+ * clear the number of seconds it must be false before the rule is resolved, severity is warn (default) or error.
+ * A missing sensor reading makes a condition on it false.
+ *
+ * The rules are compiled into arrays indexed by rule, evaluating them reads a few primitives per rule and does not
+ * allocate. Transitions go to the AlertNotifiers. A reloaded configuration recompiles the rules: a rule with the same
+ * name and definition keeps its state, a firing rule that was changed or removed is resolved first.
+ */
+public class AlertEngine {
+
+    private final static String[] VARIABLES;
+    private final static int FRAME_AGE = SolarFrame.SENSOR_COUNT;
+    private final static int MISSING_SENSORS = FRAME_AGE + 1;
+    private final static int STATE_CHANGES = MISSING_SENSORS + 1;
+    private final static int NONE = -1;
+    private final static int LT = 0, LE = 1, GT = 2, GE = 3, EQ = 4, NE = 5;
+    private final static List<String> OPERATORS = Arrays.asList("<", "<=", ">", ">=", "==", "!=");
+    private final static Pattern WHEN = Pattern.compile(
+            "\\s*([\\w.]+)\\s*(?:([-+])\\s*([\\w.]+)\\s*)?(<=|>=|==|!=|<|>)\\s*(-?[\\d.]+)\\s*");
+    private final static long HOUR_MS = 60*60*1000;
+
+    static {
+        VARIABLES = Arrays.copyOf(SolarFrame.SENSOR_KEYS, STATE_CHANGES + 1);
+        VARIABLES[FRAME_AGE] = "frameAgeSeconds";
+        VARIABLES[MISSING_SENSORS] = "missingSensors";
+        VARIABLES[STATE_CHANGES] = "stateChangesPerHour";
+    }
+
+    private final List<AlertNotifier> notifiers;
+    private Properties source;
+
+    // compiled rules
+    private int count;
+    private String[] name, severity;
+    private int[] left, right, operator, states;
+    private double[] sign, threshold;
+    private long[] holdMs, clearMs;
+    // rule state
+    private long[] trueSince, falseSince;
+    private boolean[] firing;
+
+    private final double[] values = new double[VARIABLES.length];
+    private long lastFrameMillis = System.currentTimeMillis();
+    private SolarState state;
+    /** Ring of the last state change times, enough for the rate rules */
+    private final long[] stateChanges = new long[64];
+    private int stateChangeIndex;
+    private long maxEvaluateNanos;
+
+    private AlertEngine(Properties prop, List<AlertNotifier> notifiers) {
+        this.notifiers = notifiers;
+        Arrays.fill(values, Double.NaN);
+        compile(prop);
+    }
+
+    /** @return null when no rules are configured */
+    public static AlertEngine create(Properties prop) {
+        if (prop.getProperty("alert.rules") == null) {
+            return null;
+        }
+        List<AlertNotifier> notifiers = new ArrayList<>();
+        for (String notifier : prop.getProperty("alert.notifiers", "log").split(",")) {
+            switch (notifier.trim()) {
+                case "log":
+                    notifiers.add(new AlertNotifier.Log());
+                    break;
+                case "redis":
+                    notifiers.add(new AlertNotifier.Redis());
+                    break;
+                default:
+                    try {
+                        notifiers.add((AlertNotifier)Class.forName(notifier.trim()).getDeclaredConstructor()
+                                .newInstance());
+                    } catch (ReflectiveOperationException | ClassCastException e) {
+                        LogstashLogger.INSTANCE.error("Unknown alert notifier " + notifier + " " + e.toString());
+                    }
+                    break;
+            }
+        }
+        return new AlertEngine(prop, notifiers);
+    }
+
+    private void compile(Properties prop) {
+        source = prop;
+        int oldCount = count;
+        String[] oldName = name, oldSeverity = severity;
+        int[] oldLeft = left, oldRight = right, oldOperator = operator, oldStates = states;
+        double[] oldSign = sign, oldThreshold = threshold;
+        long[] oldHoldMs = holdMs, oldClearMs = clearMs, oldTrueSince = trueSince, oldFalseSince = falseSince;
+        boolean[] oldFiring = firing;
+
+        List<String> names = new ArrayList<>();
+        for (String rule : prop.getProperty("alert.rules", "").split(",")) {
+            if (!rule.trim().isEmpty()) {
+                names.add(rule.trim());
+            }
+        }
+        int size = names.size();
+        name = new String[size];
+        severity = new String[size];
+        left = new int[size];
+        right = new int[size];
+        operator = new int[size];
+        states = new int[size];
+        sign = new double[size];
+        threshold = new double[size];
+        holdMs = new long[size];
+        clearMs = new long[size];
+        trueSince = new long[size];
+        falseSince = new long[size];
+        firing = new boolean[size];
+
+        count = 0;
+        for (String rule : names) {
+            String prefix = "alert.rule." + rule + ".";
+            try {
+                String when = prop.getProperty(prefix + "when");
+                Matcher matcher = WHEN.matcher(when == null ? "" : when);
+                if (!matcher.matches()) {
+                    throw new IllegalArgumentException("cannot parse when=" + when);
+                }
+                name[count] = rule;
+                severity[count] = prop.getProperty(prefix + "severity", "warn");
+                left[count] = variable(matcher.group(1));
+                right[count] = matcher.group(3) == null ? NONE : variable(matcher.group(3));
+                sign[count] = "-".equals(matcher.group(2)) ? -1.0 : 1.0;
+                operator[count] = OPERATORS.indexOf(matcher.group(4));
+                threshold[count] = Double.parseDouble(matcher.group(5));
+                holdMs[count] = Long.parseLong(prop.getProperty(prefix + "for", "0"))*1000;
+                clearMs[count] = Long.parseLong(prop.getProperty(prefix + "clear", "0"))*1000;
+                states[count] = ~0;
+                if (prop.getProperty(prefix + "state") != null) {
+                    states[count] = 0;
+                    for (String state : prop.getProperty(prefix + "state").split(",")) {
+                        states[count] |= 1 << SolarState.valueOf(state.trim()).ordinal();
+                    }
+                }
+                count++;
+            } catch (IllegalArgumentException e) {
+                LogstashLogger.INSTANCE.error("Alert rule " + rule + " ignored, " + e.getMessage());
+            }
+        }
+
+        Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            index.put(name[i], i);
+        }
+        long now = System.currentTimeMillis();
+        for (int old = 0; old < oldCount; old++) {
+            Integer i = index.get(oldName[old]);
+            if (i != null && severity[i].equals(oldSeverity[old]) && left[i] == oldLeft[old]
+                    && right[i] == oldRight[old] && sign[i] == oldSign[old] && operator[i] == oldOperator[old]
+                    && threshold[i] == oldThreshold[old] && states[i] == oldStates[old] && holdMs[i] == oldHoldMs[old]
+                    && clearMs[i] == oldClearMs[old]) {
+                trueSince[i] = oldTrueSince[old];
+                falseSince[i] = oldFalseSince[old];
+                firing[i] = oldFiring[old];
+            } else if (oldFiring[old]) {
+                notify(oldName[old], oldSeverity[old], false, Double.NaN, now);
+            }
+        }
+        LogstashLogger.INSTANCE.info("Compiled " + count + " alert rules");
+    }
+
+    private static int variable(String name) {
+        for (int i = 0; i < VARIABLES.length; i++) {
+            if (VARIABLES[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("unknown variable " + name);
+    }
+
+    public void add(SolarFrame frame) {
+        int missing = 0;
+        for (int i = 0; i < SolarFrame.SENSOR_COUNT; i++) {
+            if (TemperatureSensor.isOutlier(frame.temperatures[i])) {
+                values[i] = Double.NaN;
+                missing++;
+            } else {
+                values[i] = Double.parseDouble(frame.temperatures[i]);
+            }
+        }
+        values[MISSING_SENSORS] = missing;
+        lastFrameMillis = frame.receivedMillis;
+        evaluate(frame.receivedMillis);
+    }
+
+    /** The solarState read back from Redis, called after every write */
+    public void state(SolarState current, long now) {
+        if (current != state) {
+            if (state != null) {
+                stateChanges[stateChangeIndex] = now;
+                stateChangeIndex = (stateChangeIndex + 1) % stateChanges.length;
+            }
+            state = current;
+        }
+    }
+
+    /** Also called without frames, for the frameAgeSeconds rules */
+    public void evaluate(long now) {
+        if (Properties.current() != source) {
+            compile(Properties.current());
+        }
+        long startNanos = System.nanoTime();
+        values[FRAME_AGE] = (now - lastFrameMillis)/1000.0;
+        int changes = 0;
+        for (long change : stateChanges) {
+            if (change > 0 && now - change < HOUR_MS) {
+                changes++;
+            }
+        }
+        values[STATE_CHANGES] = changes;
+        // before the first Redis read only the rules without a state match
+        int stateBit = state == null ? 1 << 31 : 1 << state.ordinal();
+
+        for (int i = 0; i < count; i++) {
+            double value = right[i] == NONE ? values[left[i]] : values[left[i]] + sign[i]*values[right[i]];
+            boolean condition;
+            switch (operator[i]) {
+                case LT: condition = value < threshold[i]; break;
+                case LE: condition = value <= threshold[i]; break;
+                case GT: condition = value > threshold[i]; break;
+                case GE: condition = value >= threshold[i]; break;
+                case EQ: condition = value == threshold[i]; break;
+                default: condition = !Double.isNaN(value) && value != threshold[i]; break;
+            }
+            condition &= (states[i] & stateBit) != 0;
+
+            if (condition) {
+                falseSince[i] = 0;
+                if (trueSince[i] == 0) {
+                    trueSince[i] = now;
+                }
+                if (!firing[i] && now - trueSince[i] >= holdMs[i]) {
+                    firing[i] = true;
+                    notify(i, true, value, now);
+                }
+            } else {
+                trueSince[i] = 0;
+                if (firing[i]) {
+                    if (falseSince[i] == 0) {
+                        falseSince[i] = now;
+                    }
+                    if (now - falseSince[i] >= clearMs[i]) {
+                        firing[i] = false;
+                        notify(i, false, value, now);
+                    }
+                }
+            }
+        }
+        maxEvaluateNanos = Math.max(maxEvaluateNanos, System.nanoTime() - startNanos);
+    }
+
+    private void notify(int rule, boolean firing, double value, long now) {
+        notify(name[rule], severity[rule], firing, value, now);
+    }
+
+    private void notify(String rule, String severity, boolean firing, double value, long now) {
+        for (AlertNotifier notifier : notifiers) {
+            try {
+                notifier.alert(rule, severity, firing, value, now);
+            } catch (RuntimeException e) {
+                LogstashLogger.INSTANCE.error("Alert notifier failed " + e.toString());
+            }
+        }
+    }
+
+    public int firingCount() {
+        int retVal = 0;
+        for (int i = 0; i < count; i++) {
+            if (firing[i]) {
+                retVal++;
+            }
+        }
+        return retVal;
+    }
+
+    /** Since the last call, for the writer metrics */
+    public long maxEvaluateNanos() {
+        long retVal = maxEvaluateNanos;
+        maxEvaluateNanos = 0;
+        return retVal;
+    }
+}
@@ -0,0 +1,112 @@
+import org.json.JSONObject;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Destination of the alerts of the AlertEngine.
+ *
+ * Called on the SolarSlave Redis writer thread, an implementation must not block. Configured with alert.notifiers
+ * in /etc/iot.conf: log, redis or the class name of an implementation with a public no argument constructor.
+ */
+public interface AlertNotifier {
+
+    /**
+     * @param firing true when the rule starts firing, false when it is resolved
+     * @param value the left hand side of the rule at that moment
+     */
+    void alert(String rule, String severity, boolean firing, double value, long millis);
+
+    /** Logstash line and an alert metric, through the TelemetryRouter queues */
+    class Log implements AlertNotifier {
+        @Override
+        public void alert(String rule, String severity, boolean firing, double value, long millis) {
+            String message = "Alert " + rule + (firing ? " firing" : " resolved") + ", value " + value;
+            if (!firing) {
+                LogstashLogger.INSTANCE.info(message);
+            } else if ("error".equals(severity)) {
+                LogstashLogger.INSTANCE.error(message);
+            } else {
+                LogstashLogger.INSTANCE.warn(message);
+            }
+            TelemetryRouter.INSTANCE.metric("alert,rule=" + rule + ",severity=" + severity
+                    + " firing=" + (firing ? 1 : 0) + "i,value=" + value + " " + millis*1000000);
+        }
+    }
+
+    /**
+     * The firing alerts in the hash alerts.active, every transition in the list alerts.log and on the pub/sub
+     * channel alerts. Written by its own thread from a bounded queue.
+     *
+     * alerts.active is cleared when the notifier starts (or with its first alert when Redis was not available then):
+     * a new AlertEngine starts without firing rules and never resolves the alerts of a process that crashed or
+     * restarted, it fires them again when their condition still holds.
+     */
+    class Redis implements AlertNotifier, Runnable {
+        public final static String ACTIVE = "alerts.active";
+        public final static String LOG = "alerts.log";
+        public final static String CHANNEL = "alerts";
+        private final static int LOG_LENGTH = 500;
+
+        private final BlockingQueue<JSONObject> queue = new ArrayBlockingQueue<>(1000);
+        private boolean cleared = false;
+
+        public Redis() {
+            Thread worker = new Thread(this, "AlertNotifier.Redis");
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        @Override
+        public void alert(String rule, String severity, boolean firing, double value, long millis) {
+            JSONObject alert = new JSONObject().put("rule", rule).put("severity", severity).put("firing", firing)
+                    .put("value", Double.isNaN(value) ? JSONObject.NULL : value).put("time", millis);
+            if (!queue.offer(alert)) {
+                System.out.println("Alert queue full, dropped " + alert);
+            }
+        }
+
+        @Override
+        public void run() {
+            Jedis jedis = null;
+            try {
+                jedis = new Jedis("localhost");
+                jedis.del(ACTIVE);
+                cleared = true;
+            } catch (JedisException e) {
+                LogstashLogger.INSTANCE.warn("Active alerts not cleared yet " + e.toString());
+                jedis.close();
+                jedis = null;
+            }
+            while (true) {
+                try {
+                    JSONObject alert = queue.take();
+                    if (jedis == null) {
+                        jedis = new Jedis("localhost");
+                    }
+                    if (!cleared) {
+                        jedis.del(ACTIVE);
+                        cleared = true;
+                    }
+                    if (alert.getBoolean("firing")) {
+                        jedis.hset(ACTIVE, alert.getString("rule"), alert.toString());
+                    } else {
+                        jedis.hdel(ACTIVE, alert.getString("rule"));
+                    }
+                    jedis.lpush(LOG, alert.toString());
+                    jedis.ltrim(LOG, 0, LOG_LENGTH - 1);
+                    jedis.publish(CHANNEL, alert.toString());
+                } catch (InterruptedException e) {
+                } catch (JedisException e) {
+                    LogstashLogger.INSTANCE.error("Alert not written to Redis " + e.toString());
+                    if (jedis != null) {
+                        jedis.close();
+                        jedis = null;
+                    }
+                }
+            }
+        }
+    }
+}
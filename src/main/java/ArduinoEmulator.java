@@ -0,0 +1,373 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisMonitor;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Emulator of SolarController.ino for testing the SolarSlave without a micro controller
+ * (Main emulator [port] [frames/s] [seconds] [faults] [disconnect seconds]).
+ *
+ * Listens on the port, the SolarSlave connects with usb.solar=tcp:localhost:[port]. Like the firmware it starts in
+ * ASCII with a "log:" line, answers the "B1" offer by switching to binary frames, applies the commands of the replies
+ * and acknowledgements and falls back to native control and ASCII when no valid reply came for the disconnect time.
+ *
+ * The rxtx serial path of the SolarSlave is tested through a pseudo terminal pair in front of the emulator:
+ * socat pty,raw,echo=0,link=/tmp/ttyEMU tcp:localhost:[port] and usb.solar=/tmp/ttyEMU.
+ *
+ * Every frame gets an emulator id, carried in pipe.TflowOut as 30.00 + (id % ID_WINDOW)/100. The reply latency is
+ * measured from writing the frame to the reply (ASCII) or the acknowledgement of its sequence (binary). The Redis
+ * latency is measured from writing the frame to the pipe.TflowSet push with its TflowOut, seen on Redis MONITOR.
+ * Percentiles are printed every REPORT_MS and at the end.
+ *
+ * Faults are comma separated [kind]=[probability per frame]:
+ * - garbage, a line of random characters
+ * - truncate, a frame cut off halfway (the next frame repairs the stream)
+ * - corrupt, a flipped byte in a binary frame
+ * - stall, no frames for STALL_MS
+ * - log, an extra "log:" line
+ */
+public class ArduinoEmulator {
+
+    private final static int ID_WINDOW = 4000;
+    private final static long STALL_MS = 5000;
+    private final static long REPORT_MS = 10000;
+    private final static Pattern TFLOW_SET = Pattern.compile("\"lpush\" \"pipe.TflowSet\"(.*)");
+    private final static Pattern VALUE = Pattern.compile("\"[0-9.]+:([0-9.]+)\"");
+
+    private final long intervalNanos;
+    private final long seconds;
+    private final long disconnectMs;
+    private final double garbage, truncate, corrupt, stall, log;
+    private final Random random = new Random();
+
+    /** Write time of the frame with id % ID_WINDOW, 0 when answered */
+    private final AtomicLongArray replyPending = new AtomicLongArray(ID_WINDOW);
+    private final AtomicLongArray redisPending = new AtomicLongArray(ID_WINDOW);
+    /** Emulator id of the last frame per binary sequence */
+    private final int[] sequenceIds = new int[256];
+    private final Latencies replyLatency = new Latencies(), redisLatency = new Latencies();
+
+    // controller state, like the globals of the firmware
+    private volatile boolean binary = false;
+    private volatile boolean valveI = false, valveII = false, pump = false;
+    private volatile long lastConnectMillis = System.currentTimeMillis();
+    private volatile int oldestUnansweredId = 0;
+    private int sequence = 0;
+    private volatile int id = 0;
+    private long framesSent, faultsInjected, nativeLoops;
+    private volatile long replies, invalidReplies;
+
+    public ArduinoEmulator(double framesPerSecond, long seconds, String faults, long disconnectSeconds) {
+        intervalNanos = (long)(1000000000L/framesPerSecond);
+        this.seconds = seconds;
+        disconnectMs = disconnectSeconds*1000;
+        garbage = fault(faults, "garbage");
+        truncate = fault(faults, "truncate");
+        corrupt = fault(faults, "corrupt");
+        stall = fault(faults, "stall");
+        log = fault(faults, "log");
+    }
+
+    private static double fault(String faults, String kind) {
+        for (String fault : faults.split(",")) {
+            if (fault.startsWith(kind + "=")) {
+                return Double.parseDouble(fault.substring(kind.length() + 1));
+            }
+        }
+        return 0.0;
+    }
+
+    public static void run(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7777;
+        ArduinoEmulator emulator = new ArduinoEmulator(args.length > 2 ? Double.parseDouble(args[2]) : 1.0
+                , args.length > 3 ? Long.parseLong(args[3]) : 60, args.length > 4 ? args[4] : ""
+                , args.length > 5 ? Long.parseLong(args[5]) : 180);
+        emulator.startRedisMonitor();
+        try (ServerSocket server = new ServerSocket(port)) {
+            System.out.println("Emulator waiting for SolarSlave on port " + port);
+            try (Socket socket = server.accept()) {
+                socket.setTcpNoDelay(true);
+                emulator.startReceiver(socket.getInputStream());
+                emulator.loop(socket.getOutputStream());
+            }
+        }
+        emulator.report();
+        System.exit(0);
+    }
+
+    /** The loop() of the firmware: upload, receive (on the receiver thread), native control */
+    private void loop(OutputStream out) throws IOException, InterruptedException {
+        out.write("log: solar microcontroller has started\n".getBytes(StandardCharsets.US_ASCII));
+        long start = System.nanoTime();
+        long end = start + seconds*1000000000L;
+        long lastReport = System.currentTimeMillis();
+        for (long due = start; due < end; due += intervalNanos) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait/1000000, (int)(wait%1000000));
+            }
+            if (random.nextDouble() < stall) {
+                faultsInjected++;
+                Thread.sleep(STALL_MS);
+                due += STALL_MS*1000000;
+            }
+            upload(out);
+            if (random.nextDouble() < log) {
+                faultsInjected++;
+                out.write("log: emulator says hello\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            if (System.currentTimeMillis() - lastConnectMillis > disconnectMs) {
+                binary = false;
+                nativeControl();
+                out.write("log: lost connection, going native control\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            out.flush();
+            if (System.currentTimeMillis() - lastReport > REPORT_MS) {
+                report();
+                lastReport = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void upload(OutputStream out) throws IOException {
+        int frameId = id++;
+        double[] temperatures = {61.25, 55.5, 38.75, 45.5, 30.0 + (frameId % ID_WINDOW)/100.0};
+        byte[] frame;
+        if (binary) {
+            sequence = (sequence + 1) & 0xff;
+            sequenceIds[sequence] = frameId;
+            frame = new byte[FrameDecoder.FRAME_LENGTH];
+            frame[0] = FrameDecoder.SYNC;
+            frame[1] = FrameDecoder.VERSION;
+            frame[2] = (byte)sequence;
+            for (int i = 0; i < SolarFrame.SENSOR_COUNT; i++) {
+                int centi = (int)Math.round(temperatures[i]*100.0);
+                frame[3 + 2*i] = (byte)(centi >> 8);
+                frame[4 + 2*i] = (byte)centi;
+            }
+            frame[13] = (byte)((valveI ? 1 : 0) | (valveII ? 2 : 0) | (pump ? 4 : 0));
+            int crc = FrameDecoder.crc16(frame, 1, FrameDecoder.FRAME_LENGTH - 3);
+            frame[14] = (byte)(crc >> 8);
+            frame[15] = (byte)crc;
+            if (random.nextDouble() < corrupt) {
+                faultsInjected++;
+                frame[3 + random.nextInt(10)] ^= 0x10;
+                frameId = -1;
+            }
+        } else {
+            StringBuilder line = new StringBuilder();
+            for (double temperature : temperatures) {
+                line.append(SolarFrame.centiToString((int)Math.round(temperature*100.0))).append(':');
+            }
+            line.append(valveI ? 'T' : 'F').append(':').append(valveII ? 'T' : 'F').append(':')
+                    .append(pump ? 'T' : 'F').append("\r\n");
+            frame = line.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        if (random.nextDouble() < garbage) {
+            faultsInjected++;
+            byte[] noise = new byte[10 + random.nextInt(30)];
+            for (int i = 0; i < noise.length; i++) {
+                noise[i] = (byte)('!' + random.nextInt(90));
+            }
+            out.write(noise);
+            out.write('\n');
+        }
+        boolean truncated = random.nextDouble() < truncate;
+        // no reply is expected for a broken frame
+        if (frameId >= 0 && !truncated) {
+            long now = System.nanoTime();
+            replyPending.set(frameId % ID_WINDOW, now);
+            redisPending.set(frameId % ID_WINDOW, now);
+        }
+        if (truncated) {
+            faultsInjected++;
+            out.write(frame, 0, frame.length/2);
+            if (!binary) {
+                out.write('\n');
+            }
+        } else {
+            out.write(frame);
+        }
+        framesSent++;
+    }
+
+    /** solarValveControl of the firmware, without the timers */
+    private void nativeControl() {
+        nativeLoops++;
+        if (!valveI && pump) {
+            valveI = valveII = true;
+        } else if (!(valveI && valveII && pump)) {
+            valveI = valveII = pump = true;
+        }
+    }
+
+    private void startReceiver(final InputStream in) {
+        Thread receiver = new Thread("EmulatorReceiver") {
+            public void run() {
+                byte[] reply = new byte[FrameDecoder.ACK_LENGTH];
+                int position = 0;
+                try {
+                    int b;
+                    while ((b = in.read()) >= 0) {
+                        if (binary) {
+                            if (position == 0 && (byte)b != FrameDecoder.SYNC) {
+                                invalidReplies++;
+                                continue;
+                            }
+                            reply[position++] = (byte)b;
+                            if (position == FrameDecoder.ACK_LENGTH) {
+                                position = 0;
+                                acknowledged(reply);
+                            }
+                        } else if (position < 3) {
+                            if (b != 'T' && b != 'F') {
+                                invalidReplies++;
+                                position = 0;
+                                continue;
+                            }
+                            reply[position++] = (byte)b;
+                            if (position == 3) {
+                                replied(reply);
+                            }
+                        } else {
+                            // after a reply only the binary offer may follow
+                            if (position == 3 && b == 'B') {
+                                position++;
+                            } else if (position == 4 && b == '0' + FrameDecoder.VERSION) {
+                                binary = true;
+                                position = 0;
+                            } else {
+                                position = 0;
+                                if (b == 'T' || b == 'F') {
+                                    reply[position++] = (byte)b;
+                                }
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("Emulator connection closed " + e.toString());
+                }
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    private void replied(byte[] reply) {
+        lastConnectMillis = System.currentTimeMillis();
+        valveI = reply[0] == 'T';
+        valveII = reply[1] == 'T';
+        pump = reply[2] == 'T';
+        replies++;
+        // ASCII replies answer the frames in order
+        int frameId = oldestUnansweredId;
+        while (frameId < id && replyPending.get(frameId % ID_WINDOW) == 0) {
+            frameId++;
+        }
+        if (frameId < id) {
+            long sent = replyPending.getAndSet(frameId % ID_WINDOW, 0);
+            if (sent != 0) {
+                replyLatency.add(System.nanoTime() - sent);
+            }
+            oldestUnansweredId = frameId + 1;
+        }
+    }
+
+    private void acknowledged(byte[] ack) {
+        int crc = FrameDecoder.crc16(ack, 1, FrameDecoder.ACK_LENGTH - 3);
+        if (ack[1] != FrameDecoder.VERSION || ack[4] != (byte)(crc >> 8) || ack[5] != (byte)crc) {
+            invalidReplies++;
+            return;
+        }
+        lastConnectMillis = System.currentTimeMillis();
+        valveI = (ack[3] & 1) != 0;
+        valveII = (ack[3] & 2) != 0;
+        pump = (ack[3] & 4) != 0;
+        replies++;
+        // manual commands repeat the sequence of the last frame, only the first acknowledgement counts
+        long sent = replyPending.getAndSet(sequenceIds[ack[2] & 0xff] % ID_WINDOW, 0);
+        if (sent != 0) {
+            replyLatency.add(System.nanoTime() - sent);
+        }
+    }
+
+    private void startRedisMonitor() {
+        Thread monitor = new Thread("EmulatorRedisMonitor") {
+            public void run() {
+                try (Jedis jedis = new Jedis("localhost")) {
+                    jedis.monitor(new JedisMonitor() {
+                        @Override
+                        public void onCommand(String command) {
+                            long now = System.nanoTime();
+                            Matcher push = TFLOW_SET.matcher(command);
+                            if (push.find()) {
+                                Matcher value = VALUE.matcher(push.group(1));
+                                while (value.find()) {
+                                    int frameId = (int)Math.round((Double.parseDouble(value.group(1)) - 30.0)*100.0);
+                                    if (frameId >= 0 && frameId < ID_WINDOW) {
+                                        long sent = redisPending.getAndSet(frameId, 0);
+                                        if (sent != 0) {
+                                            redisLatency.add(now - sent);
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    });
+                } catch (JedisException e) {
+                    System.out.println("No Redis monitor, only reply latency is measured " + e.toString());
+                }
+            }
+        };
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    private void report() {
+        System.out.println("frames " + framesSent + ", protocol " + (binary ? "binary" : "ascii") + ", replies "
+                + replies + ", invalid reply bytes " + invalidReplies + ", faults " + faultsInjected
+                + ", native loops " + nativeLoops);
+        System.out.println("  frame to reply       " + replyLatency.summary());
+        System.out.println("  frame to Redis write " + redisLatency.summary());
+    }
+
+    /** Latencies in nanoseconds, percentiles over the whole run */
+    private static class Latencies {
+        private long[] values = new long[1024];
+        private int count = 0;
+
+        synchronized void add(long nanos) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count*2);
+            }
+            values[count++] = nanos;
+        }
+
+        synchronized String summary() {
+            if (count == 0) {
+                return "n=0";
+            }
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            return "n=" + count + " p50=" + millis(sorted, 0.5) + "ms p90=" + millis(sorted, 0.9)
+                    + "ms p99=" + millis(sorted, 0.99) + "ms max=" + millis(sorted, 1.0) + "ms";
+        }
+
+        private static String millis(long[] sorted, double percentile) {
+            int index = Math.min(sorted.length - 1, (int)Math.ceil(percentile*sorted.length) - 1);
+            return String.format("%.2f", sorted[Math.max(0, index)]/1000000.0);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import net.e175.klaus.solarpositioning.AzimuthZenithAngle;
+import redis.clients.jedis.Jedis;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Clear sky irradiance on the collectors, in W/m2, for every STEP_MINUTES of a day.
+ *
+ * Direct normal irradiance after Meinel with the Kasten-Young air mass, diffuse as a fixed fraction of it. The
+ * direct part is projected on the collector plane, set with collector.tilt (degrees from horizontal) and
+ * collector.azimuth (degrees, 180 is south) in /etc/iot.conf. This is an upper bound, clouds only lower it, but the
+ * shape over the day is what the Controller needs: how much stronger or weaker the sun gets in the next hour.
+ *
+ * The profile only depends on the date, it is calculated once a day and kept in Redis as sun.clearSky.[yyyyMMdd]
+ * for the Controller runs of that day.
+ */
+public class ClearSky {
+
+    public final static int STEP_MINUTES = 5;
+    private final static long STEP_MS = STEP_MINUTES*60*1000;
+    /** A day with the switch from summer time has 25 hours */
+    private final static int STEPS = 25*60/STEP_MINUTES;
+    private final static int EXPIRE_SECONDS = 2*24*60*60;
+
+    private final static double SOLAR_CONSTANT = 1353.0;
+    private final static double DIFFUSE_FRACTION = 0.1;
+
+    private final long midnight;
+    private final double[] irradiance;
+
+    private ClearSky(long midnight, double[] irradiance) {
+        this.midnight = midnight;
+        this.irradiance = irradiance;
+    }
+
+    /** The profile of today, from Redis or calculated and stored */
+    public static ClearSky today(Jedis jedis) {
+        Calendar midnight = Calendar.getInstance();
+        midnight.set(Calendar.HOUR_OF_DAY, 0);
+        midnight.set(Calendar.MINUTE, 0);
+        midnight.set(Calendar.SECOND, 0);
+        midnight.set(Calendar.MILLISECOND, 0);
+        String key = "sun.clearSky." + new SimpleDateFormat("yyyyMMdd").format(midnight.getTime());
+
+        String stored = jedis.get(key);
+        double[] irradiance = new double[STEPS];
+        if (stored != null) {
+            String[] values = stored.split(",");
+            for (int i = 0; i < STEPS && i < values.length; i++) {
+                irradiance[i] = Integer.parseInt(values[i]);
+            }
+        } else {
+            StringBuilder value = new StringBuilder();
+            Sun sun = new Sun();
+            double tilt = Math.toRadians(Properties.current().collectorTilt);
+            double azimuth = Properties.current().collectorAzimuth;
+            for (int i = 0; i < STEPS; i++) {
+                GregorianCalendar time = new GregorianCalendar();
+                time.setTimeInMillis(midnight.getTimeInMillis() + i*STEP_MS);
+                irradiance[i] = Math.round(onCollector(sun.position(time), tilt, azimuth));
+                value.append(i == 0 ? "" : ",").append((int)irradiance[i]);
+            }
+            jedis.setex(key, EXPIRE_SECONDS, value.toString());
+        }
+        return new ClearSky(midnight.getTimeInMillis(), irradiance);
+    }
+
+    static double onCollector(AzimuthZenithAngle position, double tilt, double azimuth) {
+        double zenith = position.getZenithAngle();
+        if (zenith >= 90.0) {
+            return 0.0;
+        }
+        double cosZenith = Math.cos(Math.toRadians(zenith));
+        double airMass = 1.0/(cosZenith + 0.50572*Math.pow(96.07995 - zenith, -1.6364));
+        double direct = SOLAR_CONSTANT*Math.pow(0.7, Math.pow(airMass, 0.678));
+        double cosIncidence = cosZenith*Math.cos(tilt) + Math.sin(Math.toRadians(zenith))*Math.sin(tilt)
+                * Math.cos(Math.toRadians(position.getAzimuth() - azimuth));
+        return direct*Math.max(0.0, cosIncidence) + DIFFUSE_FRACTION*direct*(1.0 + Math.cos(tilt))/2.0;
+    }
+
+    /** Linear between the steps, W/m2 */
+    public double irradiance(long millis) {
+        double step = (double)(millis - midnight)/STEP_MS;
+        int i = (int)Math.floor(step);
+        if (i < 0 || i >= STEPS - 1) {
+            return 0.0;
+        }
+        return irradiance[i] + (step - i)*(irradiance[i + 1] - irradiance[i]);
+    }
+
+    /**
+     * The hours of sun at the current strength that the next minutes are worth. With a steady sun this is
+     * minutes/60, in the afternoon it is less. Each step is capped at maxRatio times the current irradiance, in the
+     * early morning the ratio would be unbounded.
+     */
+    public double equivalentHours(long now, int minutes, double maxRatio) {
+        double current = irradiance(now);
+        if (current <= 0.0) {
+            return 0.0;
+        }
+        double hours = 0.0;
+        for (int minute = 0; minute < minutes; minute++) {
+            hours += Math.min(maxRatio, irradiance(now + minute*60*1000L)/current)/60.0;
+        }
+        return hours;
+    }
+}
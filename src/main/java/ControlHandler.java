@@ -0,0 +1,174 @@
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import redis.clients.jedis.Jedis;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Manual override of the solar state for maintenance.
+ *
+ * POST /control?state=recycle&minutes=30&reason=... sets the override, the Controller keeps this state until it
+ * expires. The SolarSlave is told through Redis pub/sub and writes the command to the micro controller right away,
+ * the response reports the time from request to command written (endToEndMs).
+ * DELETE /control ends the override, GET /control shows the override and the audit log.
+ *
+ * POST and DELETE are only accepted from localhost, or with the X-Control-Secret header equal to control.secret in
+ * /etc/iot.conf. The Controller ends an override when it goes into overheat or error, or leaves boiler200 for the
+ * user water limit.
+ */
+public class ControlHandler extends AbstractHandler {
+
+    public final static String OVERRIDE = "solarState.override";
+    public final static String OVERRIDE_REASON = "solarState.overrideReason";
+    public final static String AUDIT = "solarState.overrideAudit";
+    /** Pub/sub channel to the SolarSlave, message format: [state]:[request id] */
+    public final static String COMMAND_CHANNEL = "solarState.command";
+    /** The SolarSlave pushes on this list (suffixed with the request id) when the command is written */
+    public final static String COMMAND_WRITTEN = "solarState.commandWritten.";
+    public final static String SECRET_HEADER = "X-Control-Secret";
+
+    private final static int DEFAULT_MINUTES = 30;
+    private final static int MAX_MINUTES = 24*60;
+    private final static int AUDIT_LENGTH = 100;
+    private final static int COMMAND_WRITTEN_TIMEOUT_SECONDS = 10;
+
+    @Override
+    public void handle(String s, Request request, HttpServletRequest httpServletRequest, HttpServletResponse response)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        if (!"GET".equals(httpServletRequest.getMethod()) && !authorized(httpServletRequest)) {
+            LogstashLogger.INSTANCE.warn("Control " + httpServletRequest.getMethod() + " refused from "
+                    + httpServletRequest.getRemoteAddr());
+            response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            response.setContentType("application/json");
+            response.getWriter().println(new JSONObject().put("error", "Not allowed").toString(2));
+            request.setHandled(true);
+            return;
+        }
+        Jedis jedis = new Jedis("localhost");
+        JSONObject controlResponse;
+        try {
+            switch (httpServletRequest.getMethod()) {
+                case "POST":
+                    controlResponse = override(jedis, httpServletRequest, startNanos);
+                    break;
+                case "DELETE":
+                    controlResponse = endOverride(jedis, httpServletRequest);
+                    break;
+                default:
+                    controlResponse = status(jedis);
+                    break;
+            }
+            response.setStatus(HttpServletResponse.SC_OK);
+        } catch (IllegalArgumentException e) {
+            controlResponse = new JSONObject().put("error", e.getMessage());
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        } finally {
+            IOUtils.closeQuietly(jedis);
+        }
+
+        response.setContentType("application/json");
+        response.getWriter().println(controlResponse.toString(2));
+        request.setHandled(true);
+    }
+
+    private static boolean authorized(HttpServletRequest request) {
+        try {
+            if (InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress()) {
+                return true;
+            }
+        } catch (UnknownHostException e) {
+            return false;
+        }
+        String secret = Properties.current().getProperty("control.secret");
+        String given = request.getHeader(SECRET_HEADER);
+        return StringUtils.isNotEmpty(secret) && given != null
+                && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), given.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private JSONObject override(Jedis jedis, HttpServletRequest request, long startNanos) {
+        SolarState state;
+        try {
+            state = SolarState.valueOf(request.getParameter("state"));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new IllegalArgumentException("Unknown state " + request.getParameter("state"));
+        }
+        String reason = request.getParameter("reason");
+        if (StringUtils.isBlank(reason)) {
+            throw new IllegalArgumentException("A reason is required");
+        }
+        int minutes = DEFAULT_MINUTES;
+        if (request.getParameter("minutes") != null) {
+            minutes = Integer.parseInt(request.getParameter("minutes"));
+            if (minutes < 1 || minutes > MAX_MINUTES) {
+                throw new IllegalArgumentException("Minutes must be between 1 and " + MAX_MINUTES);
+            }
+        }
+
+        long expires = new Date().getTime() + minutes*60*1000L;
+        jedis.setex(OVERRIDE, minutes*60, state.name());
+        jedis.setex(OVERRIDE_REASON, minutes*60, reason);
+        jedis.set("solarState", state.name());
+        jedis.set("lastStateChange", String.valueOf(new Date().getTime()));
+        audit(jedis, new JSONObject().put("action", "override").put("state", state.name())
+                .put("reason", reason).put("expires", expires).put("from", request.getRemoteAddr()));
+
+        String requestId = UUID.randomUUID().toString();
+        long subscribers = jedis.publish(COMMAND_CHANNEL, state.name() + ":" + requestId);
+        JSONObject retVal = new JSONObject().put("state", state.name()).put("reason", reason).put("expires", expires);
+        if (subscribers > 0) {
+            List<String> written = jedis.blpop(COMMAND_WRITTEN_TIMEOUT_SECONDS, COMMAND_WRITTEN + requestId);
+            if (written != null) {
+                retVal.put("endToEndMs", (System.nanoTime() - startNanos)/1000000.0);
+            } else {
+                retVal.put("endToEndMs", JSONObject.NULL).put("warning", "Command was not written within "
+                        + COMMAND_WRITTEN_TIMEOUT_SECONDS + " seconds");
+            }
+        } else {
+            retVal.put("endToEndMs", JSONObject.NULL).put("warning", "No SolarSlave is listening");
+        }
+        return retVal;
+    }
+
+    private JSONObject endOverride(Jedis jedis, HttpServletRequest request) {
+        String state = jedis.get(OVERRIDE);
+        jedis.del(OVERRIDE, OVERRIDE_REASON);
+        audit(jedis, new JSONObject().put("action", "end").put("state", state == null ? JSONObject.NULL : state)
+                .put("from", request.getRemoteAddr()));
+        return new JSONObject().put("ended", state == null ? JSONObject.NULL : state);
+    }
+
+    private JSONObject status(Jedis jedis) {
+        JSONArray audit = new JSONArray();
+        for (String entry : jedis.lrange(AUDIT, 0, AUDIT_LENGTH)) {
+            audit.put(new JSONObject(entry));
+        }
+        String state = jedis.get(OVERRIDE);
+        return new JSONObject()
+                .put("override", state == null ? JSONObject.NULL : state)
+                .put("reason", state == null ? JSONObject.NULL : jedis.get(OVERRIDE_REASON))
+                .put("ttl", state == null ? JSONObject.NULL : jedis.ttl(OVERRIDE))
+                .put("audit", audit);
+    }
+
+    /** Also used by the Controller when it ends an override */
+    public static void audit(Jedis jedis, JSONObject entry) {
+        entry.put("time", new Date().getTime());
+        jedis.lpush(AUDIT, entry.toString());
+        jedis.ltrim(AUDIT, 0, AUDIT_LENGTH - 1);
+        LogstashLogger.INSTANCE.info("Control override " + entry.toString());
+    }
+}
@@ -1,4 +1,5 @@
 import org.apache.commons.math3.stat.regression.SimpleRegression;
+import org.json.JSONObject;
 import redis.clients.jedis.Jedis;
 
 import java.io.IOException;
@@ -46,16 +47,15 @@ public class Controller {
     private double TflowIn, TflowOut, stateStartTflowOut;
     private Double Ttop200 = null;
     private Double Tbottem500 = null;
+    /** Of pipe.TflowSet in this run, null when there are not enough observations since the last state change */
+    private Double tSlope = null;
 
     private final static int STATE_CHANGE_GRACE_MILLISECONDS = 2*60*1000;
 
-    private final static double MAX_FLOWOUT_TEMP = 95.0;
-    private final static double LEGIONELLA_TEMP = 60.0;
-    private final static double MAX_SMALL_BOILER_TEMP = 70.0;
+    /** The thresholds, controller.* in /etc/iot.conf, one snapshot for the whole run */
+    private final Properties config = Properties.current();
+    private Sun sun;
 
-    private final static long OVERHEAT_TIMEOUT_MS = 30*60*1000; //Set to 30 minutes
-
-    private final static double RECYCLE_MAX_TEMP = 40.0;
     /** How many miliseconds should control stay in recycle? */
     private long recycleTimeMS() {
         if (isWinter()) {
@@ -64,16 +64,21 @@ public class Controller {
         return 10*60*1000;
     }
 
-    private final static double SWAP_BOILER_TEMP_RISE = 5.0;
-    private final static double MIN_FLOW_DELTA = 0.5;
-    private final static double LARGE_FLOW_DELTA_THRESHOLD = 2.0; //Meaning, sun is shining strong
-    private final static double MIN_SOLAR_PIPE_TEMP = 20.0;
-    private final static double BOILER_TEMP_CONTROL_OFFSET = 5.0; //use boiler temp for control if temp diff is larger then offset
-
     public final static double SLOPE_WINDOW_HR = 0.5;
     public final static int MIN_OBSERVATIONS = 20;
 
+    /** Projection of TflowOut, see predictiveControl */
+    public final static String PROJECTIONS = "controller.projections";
+    public final static int PROJECTIONS_LENGTH = 6000;
+    public final static int LARGE_BOILER_HORIZON_MINUTES = 60;
+    public final static int SMALL_BOILER_HORIZON_MINUTES = 30;
+    private final static double MAX_IRRADIANCE_RATIO = 2.0;
+    /** Headroom the small boiler needs to take over from a large boiler that is projected to overheat */
+    private final static double SMALL_BOILER_HEADROOM = 5.0;
+
     private SolarState currentState;
+    /** Set when a pipe temperature is substituted, see readTemperatures */
+    private String degradedReason = null;
 
     static {
 
@@ -84,45 +89,60 @@ public class Controller {
         if (jedis.exists("solarState")) {
             currentState = SolarState.valueOf(jedis.get("solarState"));
         }
+        // the safety checks come first, overheat, error and the user water limit end an override
         readTemperatures();
         pipeTSlope();
-        overheatControl();
-        smallBoilerHeatControl();
+        if (!overheatControl()) {
+            smallBoilerHeatControl();
+        }
+        if (jedis.exists(ControlHandler.OVERRIDE)) {
+            overrideControl();
+            return;
+        }
+        sun = new Sun();
         if (defrostCheck()) {
             stateDefrost();
         }
 
         if (currentState == SolarState.defrost) {
             checkDefrost();
-        } else if (!new Sun().shining()) {
+        } else if (!sun.shining()) {
             stateSunset();
         } else if (currentState == SolarState.overheat) {
             resetOverheat();
-        } else {
+        } else if (degradedReason != null) {
+            degradedControl();
+        } else if (!predictiveControl()) {
             control();
         }
     }
 
-    private void control() {
-        long lastStateChange = 0;
+    /** Milliseconds since the last state change, 0 when unknown */
+    private long sinceStateChange() {
         if (jedis.exists("lastStateChange")) {
-            lastStateChange = new Date().getTime() - Long.valueOf(jedis.get("lastStateChange"));
+            return new Date().getTime() - Long.valueOf(jedis.get("lastStateChange"));
         }
+        return 0;
+    }
+
+    private void control() {
+        long lastStateChange = sinceStateChange();
         if (lastStateChange == 0) {
             stateStartup();
         } else if (lastStateChange > STATE_CHANGE_GRACE_MILLISECONDS) {
             if (currentState == SolarState.startup) {
-                if (TflowIn > MIN_SOLAR_PIPE_TEMP) {
+                if (TflowIn > config.minSolarPipeTemp) {
                     stateLargeBoiler();
                 } else {
                     stateRecycleTimeout();
                 }
             } else if (currentState == SolarState.recycle) {
-                if (TflowOut > (stateStartTflowOut + 4.0) && TflowIn > MIN_SOLAR_PIPE_TEMP) {
+                if (TflowOut > (stateStartTflowOut + 4.0) && TflowIn > config.minSolarPipeTemp
+                        && !jedis.exists("controller.overheatProjected")) {
                     // Recycle is heating up, try again
                     stateLargeBoiler();
-                } else if (lastStateChange > recycleTimeMS() && TflowOut < RECYCLE_MAX_TEMP) {
-                   if (Tbottem500 != null && TflowIn > (Tbottem500 + BOILER_TEMP_CONTROL_OFFSET)) {
+                } else if (lastStateChange > recycleTimeMS() && TflowOut < config.recycleMaxTemp) {
+                   if (Tbottem500 != null && TflowIn > (Tbottem500 + config.boilerTempControlOffset)) {
                        stateLargeBoiler();
                    } else {
                        stateRecycleTimeout();
@@ -132,18 +152,18 @@ public class Controller {
                 if (lastStateChange > recycleTimeMS()) {
                     stateRecycle();
                 }
-            } else if (TflowIn > TflowOut + MIN_FLOW_DELTA) {
+            } else if (TflowIn > TflowOut + config.minFlowDelta) {
                 // Heat is being exchanged now, what to do?
                 // Heat up 'legionella smart'
-                if (currentState == SolarState.boiler200 && TflowOut < LEGIONELLA_TEMP
-                        && TflowIn - TflowOut > LARGE_FLOW_DELTA_THRESHOLD) {
+                if (currentState == SolarState.boiler200 && TflowOut < config.legionellaTemp
+                        && TflowIn - TflowOut > config.largeFlowDeltaThreshold) {
                     // Prefer small boiler to avoid growth of Legionella
                     // So, do nothing now
-                } else if (currentState == SolarState.boiler500 && Ttop200 != null && Ttop200 > LEGIONELLA_TEMP
-                        && TflowOut < LEGIONELLA_TEMP && TflowIn - TflowOut > LARGE_FLOW_DELTA_THRESHOLD) {
+                } else if (currentState == SolarState.boiler500 && Ttop200 != null && Ttop200 > config.legionellaTemp
+                        && TflowOut < config.legionellaTemp && TflowIn - TflowOut > config.largeFlowDeltaThreshold) {
                     // Prefer to stick to the large boiler to reach Legionella entirely bcs the small boiler is already
                     // at a clean temperature
-                } else if (stateStartTflowOut + SWAP_BOILER_TEMP_RISE < TflowOut) {
+                } else if (stateStartTflowOut + config.swapBoilerTempRise < TflowOut) {
                     //Time to switch to another boiler
                     if (currentState == SolarState.boiler200) {
                         stateLargeBoiler();
@@ -168,22 +188,101 @@ public class Controller {
         }
     }
 
-    private void overheatControl() {
-        if (TflowOut > MAX_FLOWOUT_TEMP) {
+    /**
+     * A manual override (see ControlHandler) is kept until it expires or a safety check ends it (see endOverride),
+     * the controller does nothing else meanwhile.
+     */
+    private void overrideControl() {
+        SolarState override = SolarState.valueOf(jedis.get(ControlHandler.OVERRIDE));
+        if (currentState != override) {
+            jedis.set("solarState", override.name());
+            jedis.set("lastStateChange", String.valueOf(new Date().getTime()));
+            LogstashLogger.INSTANCE.info("Restoring manual override " + override + ", "
+                    + jedis.get(ControlHandler.OVERRIDE_REASON));
+        }
+    }
+
+    /**
+     * Acts before the limits of overheatControl and smallBoilerHeatControl are reached.
+     *
+     * TflowOut follows the temperature of the boiler that is being heated. Its slope (pipe.Tslope of this run, only
+     * of the current state) is what the sun delivers now, ClearSky tells how the sun develops. The projection over the
+     * horizon is TflowOut + slope * equivalent hours. Every run is recorded in controller.projections as
+     * [millis]:[state]:[TflowOut]:[horizon minutes]:[projected], see ProjectionReport.
+     *
+     * boiler200.Ttop is projected with the rise over SMALL_BOILER_HORIZON_MINUTES, both to enter and to leave
+     * boiler200, entering needs SMALL_BOILER_HEADROOM below maxSmallBoilerTemp. Like control() no state is changed
+     * within STATE_CHANGE_GRACE_MILLISECONDS of the last change.
+     *
+     * @return true when the state is changed
+     */
+    private boolean predictiveControl() {
+        long now = new Date().getTime();
+        int horizon = currentState == SolarState.boiler200 ? SMALL_BOILER_HORIZON_MINUTES : LARGE_BOILER_HORIZON_MINUTES;
+        Double projected = null;
+        ClearSky clearSky = null;
+        if (tSlope != null && (currentState == SolarState.boiler200 || currentState == SolarState.boiler500)) {
+            // one Redis read per run, both projections use it
+            clearSky = ClearSky.today(jedis);
+            projected = TflowOut + rise(clearSky, now, horizon);
+            jedis.setex("controller.projectedTflowOut", Properties.redisExpireSeconds, String.valueOf(projected));
+        }
+        jedis.lpush(PROJECTIONS, now + ":" + currentState + ":" + TflowOut + ":" + horizon + ":"
+                + (projected == null ? "" : String.valueOf(projected)));
+        jedis.ltrim(PROJECTIONS, 0, PROJECTIONS_LENGTH - 1);
+        if (projected == null || sinceStateChange() <= STATE_CHANGE_GRACE_MILLISECONDS) {
+            return false;
+        }
+
+        Double projectedTtop200 = Ttop200 == null ? null : Ttop200 + rise(clearSky, now, SMALL_BOILER_HORIZON_MINUTES);
+        if (currentState == SolarState.boiler500 && projected > config.maxFlowOutTemp) {
+            if (projectedTtop200 != null && projectedTtop200 < config.maxSmallBoilerTemp - SMALL_BOILER_HEADROOM) {
+                LogstashLogger.INSTANCE.info("TflowOut projected at " + projected + " in " + horizon
+                        + " minutes, boiler200.Ttop at " + projectedTtop200
+                        + ", switching to boiler200 before overheating");
+                stateSmallBoiler();
+            } else {
+                LogstashLogger.INSTANCE.info("TflowOut projected at " + projected + " in " + horizon
+                        + " minutes, recycling before overheating");
+                jedis.setex("controller.overheatProjected", horizon*60, String.valueOf(projected));
+                stateRecycle();
+            }
+            return true;
+        } else if (currentState == SolarState.boiler200 && projectedTtop200 != null
+                && projectedTtop200 > config.maxSmallBoilerTemp) {
+            LogstashLogger.INSTANCE.info("boiler200.Ttop projected at " + projectedTtop200 + " in "
+                    + SMALL_BOILER_HORIZON_MINUTES + " minutes, switching to boiler500");
+            stateLargeBoiler();
+            return true;
+        }
+        return false;
+    }
+
+    /** What the current slope adds over the horizon with the clear sky irradiance, never negative */
+    private double rise(ClearSky clearSky, long now, int horizonMinutes) {
+        return Math.max(0.0, tSlope)*clearSky.equivalentHours(now, horizonMinutes, MAX_IRRADIANCE_RATIO);
+    }
+
+    /** @return true when TflowOut is too high */
+    private boolean overheatControl() {
+        if (TflowOut > config.maxFlowOutTemp) {
             stateOverheat();
+            return true;
         }
+        return false;
     }
 
     /** From the small boiler water exits to the user. The Tout temperature must be limited */
     private void smallBoilerHeatControl() {
-        if (currentState == SolarState.boiler200 && Ttop200 != null && Ttop200 > MAX_SMALL_BOILER_TEMP) {
+        if (currentState == SolarState.boiler200 && Ttop200 != null && Ttop200 > config.maxSmallBoilerTemp) {
             LogstashLogger.INSTANCE.info("Switching off small boiler to prevent overheated user water");
+            endOverride(SolarState.boiler500);
             stateLargeBoiler();
         }
     }
 
     private void resetOverheat() {
-        if (new Date().getTime() - Long.valueOf(jedis.get("lastStateChange")) > OVERHEAT_TIMEOUT_MS) {
+        if (new Date().getTime() - Long.valueOf(jedis.get("lastStateChange")) > config.overheatTimeoutMs) {
             LogstashLogger.INSTANCE.info("Ending overheat status, switching to boiler500");
             stateLargeBoiler();
         }
@@ -228,22 +327,39 @@ public class Controller {
         }
     }
 
+    /**
+     * An unhealthy pipe.TflowIn (see SensorHealth) is replaced by boiler500.Tbottom, the coil sits at the bottom of the
+     * large boiler. The controller then runs degradedControl instead of the delta based control. pipe.TflowOut is
+     * never replaced, the cooler boiler would hide an overheating collector from overheatControl: without a trusted
+     * TflowOut, or without any substitute, everything is shut down.
+     */
     private void readTemperatures() throws IOException {
-        if (jedis.exists("pipe.TflowIn") && jedis.exists("pipe.TflowOut")) {
-            TflowIn = Double.parseDouble(jedis.get("pipe.TflowIn"));
-            TflowOut = Double.parseDouble(jedis.get("pipe.TflowOut"));
-        } else {
+        Tbottem500 = trustedTemperature("boiler500.Tbottom");
+        if (Tbottem500 == null) {
+            LogstashLogger.INSTANCE.warn("Boiler temperature boiler500.Tbottom not available");
+        }
+        Double flowIn = trustedTemperature("pipe.TflowIn");
+        Double flowOut = trustedTemperature("pipe.TflowOut");
+        if (flowOut == null || (flowIn == null && Tbottem500 == null)) {
             stateError(); //avoid overheating the pump, shut everything down
-            LogstashLogger.INSTANCE.error("No temperature readings available, going into error state");
+            LogstashLogger.INSTANCE.error(flowOut == null ? "pipe.TflowOut " + health("pipe.TflowOut")
+                    + ", no overheat protection, going into error state"
+                    : "No temperature readings available, going into error state");
             throw new IOException("No control temperature available");
         }
 
-        if (jedis.exists("boiler500.Tbottom")) {
-            Tbottem500 = Double.parseDouble(jedis.get("boiler500.Tbottom"));
-        } else {
-            Tbottem500 = null;
-            LogstashLogger.INSTANCE.warn("Boiler temperature boiler500.Tbottom not available");
+        degradedReason = null;
+        if (flowIn == null) {
+            degradedReason = "pipe.TflowIn " + health("pipe.TflowIn");
+            flowIn = Tbottem500;
+        }
+        TflowIn = flowIn;
+        TflowOut = flowOut;
+        if (degradedReason != null) {
+            LogstashLogger.INSTANCE.warn("Degraded control, " + degradedReason + ", using boiler500.Tbottom");
+            jedis.setex("controller.degraded", Properties.redisExpireSeconds, degradedReason);
         }
+
         if (jedis.exists("stateStartTflowOut")) {
             stateStartTflowOut = Double.parseDouble(jedis.get("stateStartTflowOut"));
         }
@@ -255,6 +371,27 @@ public class Controller {
         }
     }
 
+    /** @return the temperature, or null when it is missing or its sensor is not healthy */
+    private Double trustedTemperature(String key) {
+        String health = health(key);
+        if (health != null && !SensorHealth.Status.ok.name().equals(health)) {
+            return null;
+        }
+        return jedis.exists(key) ? Double.parseDouble(jedis.get(key)) : null;
+    }
+
+    private String health(String key) {
+        return jedis.get(key + SensorHealth.SUFFIX);
+    }
+
+    /** pipe.TflowIn is substituted, the large boiler is the safe place for the heat */
+    private void degradedControl() {
+        if (currentState != SolarState.boiler500) {
+            LogstashLogger.INSTANCE.info("Degraded control, " + degradedReason);
+            stateLargeBoiler();
+        }
+    }
+
     private void stateStartup() {
         jedis.set("solarState", SolarState.startup.name());
         //Take some extra time to smooth out early morning temperature swings.
@@ -296,6 +433,7 @@ public class Controller {
     }
 
     private void stateError() {
+        endOverride(SolarState.error);
         if (currentState != SolarState.error) {
             jedis.set("solarState", SolarState.error.name());
             if (jedis.exists("lastStateChange")) {
@@ -310,6 +448,7 @@ public class Controller {
     }
 
     private void stateOverheat() {
+        endOverride(SolarState.overheat);
         if (currentState != SolarState.overheat) {
             jedis.set("solarState", SolarState.overheat.name());
             jedis.set("lastStateChange", String.valueOf(new Date().getTime()));
@@ -319,6 +458,17 @@ public class Controller {
         }
     }
 
+    /** Safety wins over a manual override, ended like DELETE /control with an audit entry */
+    private void endOverride(SolarState state) {
+        String override = jedis.get(ControlHandler.OVERRIDE);
+        if (override != null) {
+            LogstashLogger.INSTANCE.warn("Ending manual override " + override + ", going into " + state);
+            jedis.del(ControlHandler.OVERRIDE, ControlHandler.OVERRIDE_REASON);
+            ControlHandler.audit(jedis, new JSONObject().put("action", "end").put("state", override)
+                    .put("reason", "Controller going into " + state).put("from", "Controller"));
+        }
+    }
+
     private void stateDefrost() {
         if (currentState != SolarState.defrost) {
             jedis.set("solarState", SolarState.defrost.name());
@@ -332,7 +482,7 @@ public class Controller {
     private void stateSunset() {
         if (currentState != SolarState.sunset) {
             jedis.set("solarState", SolarState.sunset.name());
-            LogstashLogger.INSTANCE.info("Going into sunset state, " + new Sun());
+            LogstashLogger.INSTANCE.info("Going into sunset state, " + sun);
             if (jedis.exists("lastStateChange")) {
                 jedis.del("lastStateChange"); //this will force system to startup at new state change
             }
@@ -354,6 +504,7 @@ public class Controller {
                 }
             }
             if (regression.getN() >= MIN_OBSERVATIONS) {
+                tSlope = regression.getSlope();
                 jedis.setex("pipe.Tslope", Properties.redisExpireSeconds, String.valueOf(regression.getSlope()));
                 jedis.setex("pipe.TstandardDeviation", Properties.redisExpireSeconds
                         , String.valueOf(regression.getSlopeStdErr()));
@@ -0,0 +1,223 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisMonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Failover check of the SolarSlave lease and fence against the local Redis (Main failover).
+ *
+ * Needs redis-server on localhost and usb.solar=tcp:localhost:[port] in /etc/iot.conf, and no other SolarSlave
+ * (stop cron first). The check listens on that port as a micro controller that sends ASCII frames on every
+ * connection, and starts the SolarSlaves as child processes:
+ * 1. A holds the lease, B stands by, A is killed with SIGKILL: B must take over within
+ *    LEASE_TTL_MS + POLL_INTERVAL_MS (solarslave.failoverMs)
+ * 2. C stands by, B is stopped with SIGSTOP until C took over, then continued: on Redis MONITOR the writer connection
+ *    of B must not write anything after the fence was incremented by C, and B must exit
+ * Exits with 1 when a check fails. The SolarSlave output goes to failover-[name].log in the working directory.
+ */
+public class FailoverCheck {
+
+    private final static String FRAME = "55.00:50.00:45.00:40.00:42.00:F:F:T\n";
+    private final static long FRAME_INTERVAL_MS = 500;
+    private final static long WAIT_MS = 20000;
+    /** Redis commands of the frame writer, none may come from a superseded writer */
+    private final static Pattern WRITE = Pattern.compile("\"(setex|set|lpush|rpush|ltrim|hset|expire|del)\""
+            , Pattern.CASE_INSENSITIVE);
+
+    private final List<String> monitored = Collections.synchronizedList(new ArrayList<String>());
+    private final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    private boolean passed = true;
+
+    public static void run() throws IOException, InterruptedException {
+        String usbSolar = Properties.current().usbSolar;
+        if (usbSolar == null || !usbSolar.startsWith("tcp:")) {
+            System.out.println("Failover check needs usb.solar=tcp:localhost:[port] in /etc/iot.conf");
+            System.exit(1);
+        }
+        FailoverCheck check = new FailoverCheck();
+        check.startFrameSource(Integer.parseInt(usbSolar.substring(usbSolar.lastIndexOf(':') + 1)));
+        check.startMonitor();
+        check.run(new Jedis("localhost"));
+        System.out.println(check.passed ? "Failover check passed" : "Failover check FAILED");
+        System.exit(check.passed ? 0 : 1);
+    }
+
+    private void run(Jedis jedis) throws IOException, InterruptedException {
+        jedis.del(SolarSlaveLease.LEASE_KEY, "solarslave.failoverMs");
+
+        String a = start("A");
+        long fenceA = waitForFenceAbove(jedis, fenceValue(jedis));
+        String writerA = waitForWriter(jedis, fenceA);
+        String b = start("B");
+        Thread.sleep(3000);
+        check("B stands by while A holds the lease", fenceValue(jedis) == fenceA);
+        signal("KILL", a);
+        long fenceB = waitForFenceAbove(jedis, fenceA);
+        check("B took over after SIGKILL of A", fenceB > fenceA);
+        String failoverMs = jedis.get("solarslave.failoverMs");
+        System.out.println("Failover after SIGKILL " + failoverMs + " ms, writer A was " + writerA);
+        check("B took over within " + (SolarSlaveLease.LEASE_TTL_MS + SolarSlaveLease.POLL_INTERVAL_MS) + " ms"
+                , failoverMs != null && Long.parseLong(failoverMs)
+                        <= SolarSlaveLease.LEASE_TTL_MS + SolarSlaveLease.POLL_INTERVAL_MS);
+
+        String writerB = waitForWriter(jedis, fenceB);
+        String c = start("C");
+        Thread.sleep(3000);
+        signal("STOP", b);
+        long fenceC = waitForFenceAbove(jedis, fenceB);
+        check("C took over while B is stopped", fenceC > fenceB);
+        int takeover = incrIndex();
+        waitForWriter(jedis, fenceC);
+        signal("CONT", b);
+        Thread.sleep(SolarSlaveLease.LEASE_TTL_MS);
+
+        int stale = 0;
+        synchronized (monitored) {
+            for (String command : monitored.subList(takeover < 0 ? monitored.size() : takeover, monitored.size())) {
+                if (command.contains(" " + writerB + "]") && WRITE.matcher(command).find()) {
+                    System.out.println("Stale write of B: " + command);
+                    stale++;
+                }
+            }
+        }
+        check("Superseded B wrote nothing after the takeover by C", takeover >= 0 && stale == 0);
+        check("Superseded B exited", !alive(b));
+        signal("KILL", c);
+    }
+
+    private void check(String description, boolean ok) {
+        System.out.println((ok ? "ok     " : "FAILED ") + description);
+        passed &= ok;
+    }
+
+    /** A SolarSlave child process, @return its pid */
+    private String start(String name) throws IOException, InterruptedException {
+        File pidFile = File.createTempFile("failover-" + name, ".pid");
+        ProcessBuilder builder = new ProcessBuilder("sh", "-c", "echo $$ > '" + pidFile + "'; exec '" + java
+                + "' -cp '" + System.getProperty("java.class.path") + "' Main SolarSlave");
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File("failover-" + name + ".log"));
+        builder.start();
+        for (long until = System.currentTimeMillis() + WAIT_MS; pidFile.length() == 0; Thread.sleep(100)) {
+            if (System.currentTimeMillis() > until) {
+                throw new IOException("SolarSlave " + name + " did not start");
+            }
+        }
+        String pid = new String(Files.readAllBytes(pidFile.toPath()), StandardCharsets.US_ASCII).trim();
+        pidFile.delete();
+        System.out.println("Started SolarSlave " + name + ", pid " + pid);
+        return pid;
+    }
+
+    private static void signal(String signal, String pid) throws IOException, InterruptedException {
+        System.out.println("kill -" + signal + " " + pid);
+        new ProcessBuilder("kill", "-" + signal, pid).inheritIO().start().waitFor();
+    }
+
+    private static boolean alive(String pid) throws IOException, InterruptedException {
+        return new ProcessBuilder("kill", "-0", pid).start().waitFor() == 0;
+    }
+
+    private static long fenceValue(Jedis jedis) {
+        String fence = jedis.get(SolarSlaveLease.FENCE_KEY);
+        return fence == null ? 0 : Long.parseLong(fence);
+    }
+
+    private static long waitForFenceAbove(Jedis jedis, long fence) throws InterruptedException {
+        long until = System.currentTimeMillis() + WAIT_MS;
+        while (fenceValue(jedis) <= fence && System.currentTimeMillis() < until) {
+            Thread.sleep(100);
+        }
+        return fenceValue(jedis);
+    }
+
+    /** @return the address of the writer connection of the owner of the fence, see RedisFrameWriter.CLIENT_NAME */
+    private static String waitForWriter(Jedis jedis, long fence) throws IOException, InterruptedException {
+        for (long until = System.currentTimeMillis() + WAIT_MS; System.currentTimeMillis() < until; Thread.sleep(100)) {
+            for (String client : jedis.clientList().split("\n")) {
+                if (client.contains(" name=" + RedisFrameWriter.CLIENT_NAME + fence + " ")) {
+                    for (String field : client.split(" ")) {
+                        if (field.startsWith("addr=")) {
+                            return field.substring("addr=".length());
+                        }
+                    }
+                }
+            }
+        }
+        throw new IOException("No writer connection for fence " + fence);
+    }
+
+    /** @return the position in the MONITOR log of the last increment of the fence */
+    private int incrIndex() {
+        synchronized (monitored) {
+            for (int i = monitored.size() - 1; i >= 0; i--) {
+                String command = monitored.get(i).toLowerCase();
+                if (command.contains("\"incr\" \"" + SolarSlaveLease.FENCE_KEY + "\"")) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void startMonitor() throws InterruptedException {
+        Thread monitor = new Thread("FailoverMonitor") {
+            public void run() {
+                try (Jedis jedis = new Jedis("localhost")) {
+                    jedis.monitor(new JedisMonitor() {
+                        @Override
+                        public void onCommand(String command) {
+                            monitored.add(command);
+                        }
+                    });
+                }
+            }
+        };
+        monitor.setDaemon(true);
+        monitor.start();
+        Thread.sleep(500);
+    }
+
+    /** Sends a frame every FRAME_INTERVAL_MS on every connection and ignores the replies */
+    private void startFrameSource(int port) throws IOException {
+        final ServerSocket server = new ServerSocket(port);
+        Thread acceptor = new Thread("FailoverFrameSource") {
+            public void run() {
+                while (true) {
+                    try {
+                        final Socket socket = server.accept();
+                        Thread sender = new Thread("FailoverFrames") {
+                            public void run() {
+                                try (OutputStream out = socket.getOutputStream()) {
+                                    while (true) {
+                                        out.write(FRAME.getBytes(StandardCharsets.US_ASCII));
+                                        out.flush();
+                                        Thread.sleep(FRAME_INTERVAL_MS);
+                                    }
+                                } catch (IOException | InterruptedException e) {
+                                    // the SolarSlave is gone
+                                }
+                            }
+                        };
+                        sender.setDaemon(true);
+                        sender.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+}
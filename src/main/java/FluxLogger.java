@@ -1,113 +1,181 @@
 import net.e175.klaus.solarpositioning.AzimuthZenithAngle;
-import org.apache.commons.lang3.StringUtils;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
 import java.io.Closeable;
-import java.io.IOException;
-import java.net.*;
+import java.util.*;
 
 /**
  * Created by Jaap on 25-7-2016.
  */
 public class FluxLogger implements Closeable {
 
-    private final InetAddress host;
-    private final int port;
     private Jedis jedis;
-    private final DatagramSocket socket;
 
-    public FluxLogger() throws SocketException, UnknownHostException {
-        final Properties properties = new Properties();
-        if (StringUtils.isEmpty(properties.prop.getProperty("influx.ip"))) {
-            LogstashLogger.INSTANCE.error("Influx.ip setting missing from properties");
-            throw new UnknownHostException("Please set up influx.ip and port in iot.conf");
-        }
+    /** Last sent value per exported line, remembered across the cron runs */
+    private final static String LAST_SENT = "fluxlogger.lastSent";
+    private final static String LAST_HEARTBEAT = "fluxlogger.lastHeartbeat";
+    /** Counters of runs, sent and suppressed lines and Redis round trips, sent to Influx with the heartbeat */
+    private final static String STATISTICS = "fluxlogger.statistics";
+    /** Every line is sent at least this often, also when nothing has changed */
+    private final static long HEARTBEAT_INTERVAL_MS = 10*60*1000;
+    private final static List<String> SNAPSHOT_KEYS = new ArrayList<>();
 
-        try {
-            host = InetAddress.getByName(properties.prop.getProperty("influx.ip"));
-            port = Integer.parseInt(properties.prop.getProperty("influx.port"));
-        } catch (UnknownHostException e) {
-            LogstashLogger.INSTANCE.error("Trying to set up InluxDB client for unknown host " + e.toString());
-            throw e;
-        }
-        try {
-            socket = new DatagramSocket();
-        } catch (SocketException e) {
-            System.out.println("Socket error " + e.toString());
-            LogstashLogger.INSTANCE.error("Unable to open socket to connect to InfluxDB @" + host + ":" + port
-                    + " " + e.getMessage());
-            throw e;
+    static {
+        for (String sensorLocation : TemperatureSensor.sensors.keySet()) {
+            for (String sensorPosition : TemperatureSensor.sensors.get(sensorLocation)) {
+                SNAPSHOT_KEYS.add(sensorLocation + '.' + sensorPosition);
+            }
         }
+        SNAPSHOT_KEYS.addAll(Arrays.asList("pipe.Tslope", "pipe.TstandardDeviation", "solarState", "solarStateReal"
+                , "stateStartTflowOut"));
     }
 
+    private final Map<String, String> snapshot = new HashMap<>();
+    private final Map<String, String> lastSent = new HashMap<>();
+    private final Map<String, String> sentValues = new HashMap<>();
+    private final Map<String, String> statistics = new TreeMap<>();
+    private boolean isHeartbeat;
+    private int sentLines = 0, suppressedLines = 0;
+    /** Pipeline syncs of this run, the exec() of the snapshot transaction is sent with its sync */
+    private int redisRoundTrips = 0;
+
     public FluxLogger log() {
         jedis = new Jedis("localhost");
+        readSnapshot();
         logTemperatures();
         sunLogger();
         logControl();
+        logStatistics();
+        writeSent();
         jedis.close();
         return this;
     }
 
+    /** One pipelined transaction reads every value this run exports and what the previous runs have sent */
+    private void readSnapshot() {
+        Pipeline pipeline = jedis.pipelined();
+        pipeline.multi();
+        Map<String, Response<String>> values = new HashMap<>();
+        for (String key : SNAPSHOT_KEYS) {
+            values.put(key, pipeline.get(key));
+        }
+        Response<Map<String, String>> sent = pipeline.hgetAll(LAST_SENT);
+        Response<String> heartbeat = pipeline.get(LAST_HEARTBEAT);
+        Response<Map<String, String>> statistics = pipeline.hgetAll(STATISTICS);
+        pipeline.exec();
+        sync(pipeline);
+
+        for (Map.Entry<String, Response<String>> value : values.entrySet()) {
+            if (value.getValue().get() != null) {
+                snapshot.put(value.getKey(), value.getValue().get());
+            }
+        }
+        lastSent.putAll(sent.get());
+        this.statistics.putAll(statistics.get());
+        isHeartbeat = heartbeat.get() == null
+                || new Date().getTime() - Long.parseLong(heartbeat.get()) > HEARTBEAT_INTERVAL_MS;
+    }
+
     @Deprecated
     private void logTemperatures() {
         for (String sensorLocation : TemperatureSensor.sensors.keySet()) {
             for (String sensorPosition : TemperatureSensor.sensors.get(sensorLocation)) {
                 String key = sensorLocation + '.' + sensorPosition;
-                if (jedis.exists(key)) {
+                if (snapshot.containsKey(key)) {
                     String line;
                     if (sensorLocation.startsWith("boiler")) {
                         line = "boiler,name=" + sensorLocation + ",position=" + sensorPosition
-                                + " temperature=" + jedis.get(key);
+                                + " temperature=" + snapshot.get(key);
                     } else {
-                        line = sensorLocation + ".temperature " + sensorPosition + "=" + jedis.get(key);
+                        line = sensorLocation + ".temperature " + sensorPosition + "=" + snapshot.get(key);
                     }
-                    send(line);
+                    export(key, line, line);
                 } else {
                     LogstashLogger.INSTANCE.warn("No temperature for " + key);
                 }
             }
         }
-        if (jedis.exists("pipe.Tslope")) {
-            send("pipe.velocity slope=" + jedis.get("pipe.Tslope") + ",deviation=" + jedis.get("pipe.TstandardDeviation"));
+        if (snapshot.containsKey("pipe.Tslope")) {
+            String line = "pipe.velocity slope=" + snapshot.get("pipe.Tslope")
+                    + ",deviation=" + snapshot.get("pipe.TstandardDeviation");
+            export("pipe.Tslope", line, line);
         }
     }
 
     private void logControl() {
         String line = "solarstate,controlstate="
-                + (jedis.exists("solarState") ? jedis.get("solarState") : "unavailable");
-        line += ",realstate=" + (jedis.exists("solarStateReal") ? jedis.get("solarStateReal") : "unavailable");
-        line += " startTflowOut=" + jedis.get("stateStartTflowOut");
+                + (snapshot.containsKey("solarState") ? snapshot.get("solarState") : "unavailable");
+        line += ",realstate=" + (snapshot.containsKey("solarStateReal") ? snapshot.get("solarStateReal") : "unavailable");
+        line += " startTflowOut=" + snapshot.get("stateStartTflowOut");
         line += ",value=1";
 
-        send(line);
+        export("solarState", line, line);
     }
 
     private void sunLogger() {
         Sun sun = new Sun();
         AzimuthZenithAngle position = sun.position();
+        boolean shining = sun.shining();
         String line = "sun azimuth=" + position.getAzimuth()
                     + ",zenithAngle=" + position.getZenithAngle()
-                    + ",power=" + (sun.shining() ? "1" : "0");
-        send(line);
+                    + ",power=" + (shining ? "1" : "0");
+        // The sun always moves, only whole degree changes count
+        export("sun", Math.round(position.getAzimuth()) + ":" + Math.round(position.getZenithAngle()) + ":" + shining
+                , line);
     }
 
-    public FluxLogger send(String line) {
-        byte[] data = line.getBytes();
-        try {
-            DatagramPacket packet = new DatagramPacket(data, data.length, host, port);
-            socket.send(packet);
-        } catch (IOException e) {
-            LogstashLogger.INSTANCE.error("Faulty UDP connection " + socket.isConnected() + ", @"
-                    + host.getHostAddress() + ":" + port + ", socket " + socket.isBound());
+    private void logStatistics() {
+        if (isHeartbeat && !statistics.isEmpty()) {
+            StringBuilder line = new StringBuilder("fluxlogger ");
+            for (Map.Entry<String, String> statistic : statistics.entrySet()) {
+                line.append(statistic.getKey()).append('=').append(statistic.getValue()).append(',');
+            }
+            send(line.substring(0, line.length() - 1));
+        }
+    }
+
+    /** Sends the line when its value differs from what was last sent, or on the heartbeat */
+    private void export(String key, String value, String line) {
+        if (isHeartbeat || !value.equals(lastSent.get(key))) {
+            send(line);
+            sentValues.put(key, value);
+            sentLines++;
+        } else {
+            suppressedLines++;
+        }
+    }
+
+    private void writeSent() {
+        Pipeline pipeline = jedis.pipelined();
+        if (!sentValues.isEmpty()) {
+            pipeline.hmset(LAST_SENT, sentValues);
+        }
+        if (isHeartbeat) {
+            pipeline.set(LAST_HEARTBEAT, String.valueOf(new Date().getTime()));
         }
+        pipeline.hincrBy(STATISTICS, "runs", 1);
+        pipeline.hincrBy(STATISTICS, "sent", sentLines);
+        pipeline.hincrBy(STATISTICS, "suppressed", suppressedLines);
+        // counts the sync below as well
+        pipeline.hincrBy(STATISTICS, "redisRoundTrips", redisRoundTrips + 1);
+        sync(pipeline);
+    }
 
+    private void sync(Pipeline pipeline) {
+        pipeline.sync();
+        redisRoundTrips++;
+    }
+
+    /** Influx line protocol, sent through the TelemetryRouter metric sinks */
+    public FluxLogger send(String line) {
+        TelemetryRouter.INSTANCE.metric(line);
         return this;
     }
 
     @Override
     public void close() {
-        if (socket != null)
-            socket.close();
+        TelemetryRouter.INSTANCE.flush();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,96 @@
+/**
+ * Tumbling window aggregation of every frame the SolarSlave receives.
+ *
+ * FluxLogger samples Redis twice a minute and misses everything in between, like short TflowOut spikes. This stage
+ * runs on the Redis writer thread, keeps min, max, mean, last and count per sensor on primitive accumulators and
+ * sends one line protocol record per window:
+ *
+ * frames,window=60 boiler500.Ttop.min=..,boiler500.Ttop.max=..,boiler500.Ttop.mean=..,boiler500.Ttop.last=..,
+ * boiler500.Ttop.count=..,(same for the other sensors),frames=.. [window start, nanoseconds]
+ *
+ * The timestamp is the start of the window, so a record that is delayed by the telemetry queues or replayed lands in
+ * its own window and not at the time it arrived.
+ *
+ * The window is set with aggregate.window.seconds in /etc/iot.conf, 0 switches aggregation off.
+ */
+public class FrameAggregator {
+
+    public final static int DEFAULT_WINDOW_SECONDS = 60;
+
+    private final FluxLogger flux;
+    private final long windowMs;
+    private final String measurement;
+
+    private final double[] min = new double[SolarFrame.SENSOR_COUNT];
+    private final double[] max = new double[SolarFrame.SENSOR_COUNT];
+    private final double[] sum = new double[SolarFrame.SENSOR_COUNT];
+    private final double[] last = new double[SolarFrame.SENSOR_COUNT];
+    private final int[] count = new int[SolarFrame.SENSOR_COUNT];
+    private int frames = 0;
+    private long windowStart = 0;
+
+    public FrameAggregator(FluxLogger flux, int windowSeconds) {
+        this.flux = flux;
+        windowMs = windowSeconds*1000L;
+        measurement = "frames,window=" + windowSeconds + " ";
+        reset();
+    }
+
+    public void add(SolarFrame frame) {
+        if (windowStart == 0) {
+            windowStart = frame.receivedMillis - frame.receivedMillis % windowMs;
+        } else if (frame.receivedMillis >= windowStart + windowMs) {
+            flush();
+            windowStart = frame.receivedMillis - frame.receivedMillis % windowMs;
+        }
+        frames++;
+        for (int i = 0; i < SolarFrame.SENSOR_COUNT; i++) {
+            if (!TemperatureSensor.isOutlier(frame.temperatures[i])) {
+                double temperature = Double.parseDouble(frame.temperatures[i]);
+                min[i] = Math.min(min[i], temperature);
+                max[i] = Math.max(max[i], temperature);
+                sum[i] += temperature;
+                last[i] = temperature;
+                count[i]++;
+            }
+        }
+    }
+
+    /** Closes the window when the frames stop coming in */
+    public void tick(long nowMillis) {
+        if (windowStart > 0 && nowMillis >= windowStart + windowMs) {
+            flush();
+            windowStart = 0;
+        }
+    }
+
+    /** Sends the current window, when it has any frames */
+    public void flush() {
+        if (frames > 0) {
+            StringBuilder line = new StringBuilder(measurement);
+            for (int i = 0; i < SolarFrame.SENSOR_COUNT; i++) {
+                if (count[i] > 0) {
+                    String key = SolarFrame.SENSOR_KEYS[i];
+                    line.append(key).append(".min=").append(min[i])
+                            .append(',').append(key).append(".max=").append(max[i])
+                            .append(',').append(key).append(".mean=").append(sum[i]/count[i])
+                            .append(',').append(key).append(".last=").append(last[i])
+                            .append(',').append(key).append(".count=").append(count[i]).append("i,");
+                }
+            }
+            line.append("frames=").append(frames).append("i ").append(windowStart*1000000);
+            flux.send(line.toString());
+        }
+        reset();
+    }
+
+    private void reset() {
+        for (int i = 0; i < SolarFrame.SENSOR_COUNT; i++) {
+            min[i] = Double.MAX_VALUE;
+            max[i] = -Double.MAX_VALUE;
+            sum[i] = 0.0;
+            count[i] = 0;
+        }
+        frames = 0;
+    }
+}
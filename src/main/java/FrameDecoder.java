@@ -0,0 +1,149 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte level decoder for the serial link with the solar micro controller.
+ *
+ * Two protocols share the link. The original ASCII protocol sends newline terminated lines (sensor frames and "log:"
+ * lines) and expects a three character reply. The binary protocol (version 1) sends fixed length frames:
+ *
+ * [SYNC][version][sequence][5 x int16 temperature][actuators][CRC-16 high][CRC-16 low]
+ *
+ * Temperatures are big endian hundredths of a degree Celsius. The actuator byte packs valve I (bit 0), valve II (bit 1)
+ * and the solar pump (bit 2). The CRC-16/CCITT covers version up to and including the actuator byte. The master
+ * acknowledges each frame with [SYNC][version][sequence][actuators][CRC-16 high][CRC-16 low] carrying the command.
+ *
+ * The sync byte never occurs in the ASCII protocol, which lets the decoder handle both formats on the same stream.
+ * Binary mode is negotiated by appending "B1" to an ASCII reply, firmware without binary support ignores that reply.
+ */
+public class FrameDecoder {
+
+    public final static byte SYNC = (byte)0xA5;
+    public final static byte VERSION = 1;
+    public final static int FRAME_LENGTH = 16;
+    public final static int ACK_LENGTH = 6;
+    /** Appended to an ASCII reply to ask the controller to switch to binary frames */
+    public final static byte[] BINARY_OFFER = {'B', (byte)('0' + VERSION)};
+
+    private final static int MAX_LINE_LENGTH = 160;
+
+    public interface Listener {
+        void onFrame(SolarFrame frame);
+        void onLine(String line);
+    }
+
+    private final Listener listener;
+    private final byte[] frame = new byte[FRAME_LENGTH];
+    private int framePosition = 0;
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private int linePosition = 0;
+    private int lastSequence = -1;
+
+    public long binaryFrames, asciiFrames, crcErrors, lostFrames, duplicateFrames;
+
+    public FrameDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void feed(byte[] buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            feed(buffer[i]);
+        }
+    }
+
+    public void feed(byte b) {
+        if (framePosition > 0) {
+            frame[framePosition++] = b;
+            if (framePosition == FRAME_LENGTH) {
+                framePosition = 0;
+                decodeFrame();
+            }
+        } else if (b == SYNC) {
+            frame[framePosition++] = b;
+        } else if (b == '\n') {
+            if (linePosition > 0) {
+                decodeLine();
+            }
+        } else if (b != '\r') {
+            if (linePosition < MAX_LINE_LENGTH) {
+                line[linePosition++] = b;
+            }
+        }
+    }
+
+    private void decodeLine() {
+        String text = new String(line, 0, linePosition, StandardCharsets.US_ASCII);
+        linePosition = 0;
+        if (!text.startsWith("log:")) {
+            SolarFrame solarFrame = SolarFrame.parseAscii(text);
+            if (solarFrame != null) {
+                // The controller falls back to ASCII after a (re)start or a lost connection, sequence starts over
+                lastSequence = -1;
+                asciiFrames++;
+                listener.onFrame(solarFrame);
+                return;
+            }
+        }
+        listener.onLine(text);
+    }
+
+    private void decodeFrame() {
+        int crc = ((frame[FRAME_LENGTH - 2] & 0xff) << 8) | (frame[FRAME_LENGTH - 1] & 0xff);
+        if (frame[1] != VERSION || crc16(frame, 1, FRAME_LENGTH - 3) != crc) {
+            crcErrors++;
+            resync();
+            return;
+        }
+        int sequence = frame[2] & 0xff;
+        if (lastSequence >= 0) {
+            int gap = (sequence - lastSequence) & 0xff;
+            if (gap == 0) {
+                duplicateFrames++;
+                return;
+            }
+            lostFrames += gap - 1;
+        }
+        lastSequence = sequence;
+
+        String[] temperatures = new String[SolarFrame.SENSOR_COUNT];
+        for (int i = 0; i < SolarFrame.SENSOR_COUNT; i++) {
+            temperatures[i] = SolarFrame.centiToString((short)(((frame[3 + 2*i] & 0xff) << 8) | (frame[4 + 2*i] & 0xff)));
+        }
+        byte actuators = frame[13];
+        binaryFrames++;
+        listener.onFrame(new SolarFrame(sequence, temperatures
+                , (actuators & 1) != 0, (actuators & 2) != 0, (actuators & 4) != 0));
+    }
+
+    /** A corrupt frame may have started on a data byte, rescan the remainder for the next sync byte */
+    private void resync() {
+        byte[] remainder = new byte[FRAME_LENGTH - 1];
+        System.arraycopy(frame, 1, remainder, 0, remainder.length);
+        for (byte b : remainder) {
+            feed(b);
+        }
+    }
+
+    public static byte[] ack(int sequence, SolarState state) {
+        byte[] retVal = {SYNC, VERSION, (byte)sequence, actuators(state), 0, 0};
+        int crc = crc16(retVal, 1, ACK_LENGTH - 3);
+        retVal[ACK_LENGTH - 2] = (byte)(crc >> 8);
+        retVal[ACK_LENGTH - 1] = (byte)crc;
+        return retVal;
+    }
+
+    public static byte actuators(SolarState state) {
+        return (byte)((state.valveOne ? 1 : 0) | (state.valveTwo ? 2 : 0) | (state.solarPump ? 4 : 0));
+    }
+
+    /** CRC-16/CCITT-FALSE, polynomial 0x1021 and initial value 0xFFFF, same as in SolarController.ino */
+    public static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (data[i] & 0xff) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+        }
+        return crc & 0xFFFF;
+    }
+}
@@ -0,0 +1,57 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer ring buffer between the serial reader and the Redis writer.
+ *
+ * The serial event thread is the only producer and the writer thread the only consumer, so the head and tail
+ * counters need ordered writes but no locking. A full ring rejects the offer, the caller decides the drop policy.
+ */
+public class FrameRing {
+
+    private final SolarFrame[] frames;
+    private final int mask;
+    /** Next slot to read, only written by the consumer */
+    private final AtomicLong head = new AtomicLong();
+    /** Next slot to write, only written by the producer */
+    private final AtomicLong tail = new AtomicLong();
+
+    public FrameRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two, not " + capacity);
+        }
+        frames = new SolarFrame[capacity];
+        mask = capacity - 1;
+    }
+
+    /** @return false when the ring is full */
+    public boolean offer(SolarFrame frame) {
+        long currentTail = tail.get();
+        if (currentTail - head.get() == frames.length) {
+            return false;
+        }
+        frames[(int)currentTail & mask] = frame;
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    /** @return the next frame or null when the ring is empty */
+    public SolarFrame poll() {
+        long currentHead = head.get();
+        if (currentHead == tail.get()) {
+            return null;
+        }
+        int index = (int)currentHead & mask;
+        SolarFrame retVal = frames[index];
+        frames[index] = null;
+        head.lazySet(currentHead + 1);
+        return retVal;
+    }
+
+    public int size() {
+        return (int)(tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return frames.length;
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator for the UdpGateway (Main gatewayLoad [host] [port] [datagrams/s] [seconds] [threads]).
+ *
+ * Sends FluxLogger style lines at the requested rate, spread over threads with their own source port so
+ * SO_REUSEPORT can spread them over the gateway readers. Compare the reported send rate with the gateway statistics.
+ */
+public class GatewayLoadGenerator {
+
+    private final static String[] LINES = {
+            "boiler,name=boiler500,position=Ttop temperature=61.25",
+            "pipe.temperature TflowIn=45.50",
+            "solarstate,controlstate=boiler500,realstate=boiler500 startTflowOut=38.5,value=1",
+            "sun azimuth=182.4,zenithAngle=41.2,power=1"};
+
+    public static void run(String[] args) throws InterruptedException {
+        final InetSocketAddress target = new InetSocketAddress(args.length > 1 ? args[1] : "localhost"
+                , args.length > 2 ? Integer.parseInt(args[2]) : 8087);
+        final long rate = args.length > 3 ? Long.parseLong(args[3]) : 100000;
+        final long seconds = args.length > 4 ? Long.parseLong(args[4]) : 30;
+        int threads = args.length > 5 ? Integer.parseInt(args[5]) : 4;
+        final AtomicLong sent = new AtomicLong();
+
+        Thread[] senders = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final long threadRate = rate / threads;
+            senders[i] = new Thread("GatewayLoad" + i) {
+                public void run() {
+                    ByteBuffer[] datagrams = new ByteBuffer[LINES.length];
+                    for (int line = 0; line < LINES.length; line++) {
+                        datagrams[line] = ByteBuffer.wrap(LINES[line].getBytes(StandardCharsets.US_ASCII));
+                    }
+                    try (DatagramChannel channel = DatagramChannel.open()) {
+                        channel.connect(target);
+                        long start = System.nanoTime();
+                        long end = start + seconds*1000000000L;
+                        long count = 0;
+                        while (System.nanoTime() < end) {
+                            ByteBuffer datagram = datagrams[(int)(count % datagrams.length)];
+                            datagram.rewind();
+                            channel.write(datagram);
+                            count++;
+                            if (count % 100 == 0) {
+                                sent.addAndGet(100);
+                                long due = start + count*1000000000L/threadRate;
+                                while (System.nanoTime() < due) {
+                                    Thread.yield();
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        System.out.println("Load generator failed " + e.toString());
+                    }
+                }
+            };
+            senders[i].start();
+        }
+
+        long last = 0;
+        for (long second = 0; second < seconds; second++) {
+            Thread.sleep(1000);
+            long current = sent.get();
+            System.out.println("Sent " + (current - last) + " datagrams/s to " + target);
+            last = current;
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        System.out.println("Sent " + sent.get() + " datagrams in " + seconds + " s");
+    }
+}
@@ -0,0 +1,59 @@
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
+import org.eclipse.jetty.server.handler.ErrorHandler;
+
+/**
+ * The http mode, kept out of Main so the other modes do not load Jetty when Main is verified.
+ */
+public class HttpListener {
+
+    public static void start(int port) {
+        LogstashLogger.INSTANCE.info("Starting http");
+
+        Server httpServer = new Server(port);
+        httpServer.setHandler(contexts());
+        ErrorHandler errorHandler = new ErrorHandler();
+        errorHandler.setShowStacks(true);
+        httpServer.addBean(errorHandler);
+
+        try {
+            httpServer.start();
+            if (Main.TRAINING) {
+                httpServer.stop();
+                return;
+            }
+            httpServer.join();
+        } catch (Exception e) {
+            LogstashLogger.INSTANCE.fatal("Failed to start http listener " + e.toString());
+            System.out.println(e.toString());
+            System.exit(0);
+        }
+
+        while (true) {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+            }
+            try {
+                //hello
+            } catch (RuntimeException e) {
+                LogstashLogger.INSTANCE.error("Exception occurred at the regular speaker scheduling " + e.toString());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static ContextHandlerCollection contexts() {
+        ContextHandler redisContext = new ContextHandler("/redis");
+        redisContext.setHandler(new RedisHandler());
+
+        ContextHandler controlContext = new ContextHandler("/control");
+        controlContext.setHandler(new ControlHandler());
+
+        ContextHandlerCollection contexts = new ContextHandlerCollection();
+        contexts.setHandlers(new Handler[] { redisContext, controlContext });
+        return contexts;
+    }
+}
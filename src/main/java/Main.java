@@ -1,26 +1,55 @@
-import org.eclipse.jetty.server.Handler;
-import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.server.handler.ContextHandler;
-import org.eclipse.jetty.server.handler.ContextHandlerCollection;
-import org.eclipse.jetty.server.handler.ErrorHandler;
-
 /**
  * Created by Jaap on 25-7-2016.
+ *
+ * Main only refers to the class of each mode, so a cron run loads the classes of its own mode and nothing more.
+ * Jetty lives in HttpListener for that reason. With -Diot.training=true the long running modes exit after their
+ * start up, this is used by the appcds profile to record the loaded classes of each mode.
  */
 public class Main {
+
+    public final static boolean TRAINING = Boolean.getBoolean("iot.training");
+
     public static void main(String[] args) {
         try {
             switch (args[0]) {
                 case "http":
-                    startHttp(8080);
+                    Properties.watch();
+                    HttpListener.start(8080);
+                    break;
                 case "FluxLogger":
                     new FluxLogger().log().close();
                     break;
                 case "Controller":
                     new Controller();
                     break;
+                case "ProjectionReport":
+                    ProjectionReport.run();
+                    break;
+                case "ThermalReport":
+                    if (args.length > 1 && "synthetic".equals(args[1])) {
+                        System.exit(ThermalEstimator.synthetic() ? 0 : 1);
+                    }
+                    ThermalEstimator.report();
+                    break;
+                case "gateway":
+                    Properties.watch();
+                    new UdpGateway().run();
+                    break;
+                case "gatewayLoad":
+                    GatewayLoadGenerator.run(args);
+                    break;
+                case "failover":
+                    FailoverCheck.run();
+                    break;
+                case "emulator":
+                    ArduinoEmulator.run(args);
+                    break;
                 case "SolarSlave":
+                    Properties.watch();
                     new SolarSlave().run();
+                    if (TRAINING) {
+                        System.exit(0);
+                    }
                     break;
                 default:
                     LogstashLogger.INSTANCE.error("Unknown parameter for Main " + args[0]);
@@ -30,45 +59,4 @@ public class Main {
             LogstashLogger.INSTANCE.error(args[0] + " has finished with unhandled exception " + e.toString());
         }
     }
-
-    private static void startHttp(int port) {
-        LogstashLogger.INSTANCE.info("Starting http");
-
-        Server httpServer = new Server(port);
-        httpServer.setHandler(contexts());
-        ErrorHandler errorHandler = new ErrorHandler();
-        errorHandler.setShowStacks(true);
-        httpServer.addBean(errorHandler);
-
-        try {
-            httpServer.start();
-            httpServer.join();
-        } catch (Exception e) {
-            LogstashLogger.INSTANCE.fatal("Failed to start http listener " + e.toString());
-            System.out.println(e.toString());
-            System.exit(0);
-        }
-
-        while (true) {
-            try {
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
-            }
-            try {
-                //hello
-            } catch (RuntimeException e) {
-                LogstashLogger.INSTANCE.error("Exception occurred at the regular speaker scheduling " + e.toString());
-                e.printStackTrace();
-            }
-        }
-    }
-
-    private static ContextHandlerCollection contexts() {
-        ContextHandler redisContext = new ContextHandler("/redis");
-        redisContext.setHandler(new RedisHandler());
-
-        ContextHandlerCollection contexts = new ContextHandlerCollection();
-        contexts.setHandlers(new Handler[] { redisContext });
-        return contexts;
-    }
 }
@@ -0,0 +1,92 @@
+import redis.clients.jedis.Jedis;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Accuracy of the TflowOut projections of the Controller, replayed from the controller.projections log.
+ *
+ * The log has an entry for every Controller run, so it also holds the actual TflowOut at the end of each horizon.
+ * A projection is scored when the state did not change before its horizon ended, otherwise it is counted as
+ * interrupted (a state change by predictiveControl itself lands here too). Per horizon the report gives the bias
+ * and mean absolute error of the projection next to the error of assuming TflowOut stays the same, printed and
+ * sent as a projection,horizon=[minutes] metric.
+ */
+public class ProjectionReport {
+
+    /** An actual reading this far from the end of the horizon is still used */
+    private final static long TOLERANCE_MS = 2*60*1000;
+
+    private static class Score {
+        int n, interrupted, missing;
+        double error, absoluteError, squaredError, persistenceAbsoluteError;
+    }
+
+    public static void run() {
+        Jedis jedis = new Jedis("localhost");
+        List<String> entries = jedis.lrange(Controller.PROJECTIONS, 0, -1);
+        jedis.close();
+        Collections.reverse(entries);
+
+        int size = entries.size();
+        long[] time = new long[size];
+        String[] state = new String[size];
+        double[] flowOut = new double[size];
+        int[] horizon = new int[size];
+        double[] projected = new double[size];
+        for (int i = 0; i < size; i++) {
+            String[] fields = entries.get(i).split(":", -1);
+            time[i] = Long.parseLong(fields[0]);
+            state[i] = fields[1];
+            flowOut[i] = Double.parseDouble(fields[2]);
+            horizon[i] = Integer.parseInt(fields[3]);
+            projected[i] = fields[4].isEmpty() ? Double.NaN : Double.parseDouble(fields[4]);
+        }
+
+        TreeMap<Integer, Score> scores = new TreeMap<>();
+        for (int i = 0; i < size; i++) {
+            if (Double.isNaN(projected[i])) {
+                continue;
+            }
+            Score score = scores.get(horizon[i]);
+            if (score == null) {
+                score = new Score();
+                scores.put(horizon[i], score);
+            }
+            long due = time[i] + horizon[i]*60*1000L;
+            int j = i + 1;
+            while (j < size && time[j] < due - TOLERANCE_MS && state[j].equals(state[i])) {
+                j++;
+            }
+            if (j == size || time[j] > due + TOLERANCE_MS) {
+                score.missing++;
+            } else if (!state[j].equals(state[i])) {
+                score.interrupted++;
+            } else {
+                double error = projected[i] - flowOut[j];
+                score.n++;
+                score.error += error;
+                score.absoluteError += Math.abs(error);
+                score.squaredError += error*error;
+                score.persistenceAbsoluteError += Math.abs(flowOut[i] - flowOut[j]);
+            }
+        }
+
+        System.out.println("Projection accuracy over " + size + " controller runs");
+        for (Integer minutes : scores.keySet()) {
+            Score score = scores.get(minutes);
+            StringBuilder line = new StringBuilder("projection,horizon=" + minutes + " n=" + score.n
+                    + "i,interrupted=" + score.interrupted + "i,missing=" + score.missing + "i");
+            if (score.n > 0) {
+                line.append(",bias=").append(score.error/score.n)
+                        .append(",mae=").append(score.absoluteError/score.n)
+                        .append(",rmse=").append(Math.sqrt(score.squaredError/score.n))
+                        .append(",persistenceMae=").append(score.persistenceAbsoluteError/score.n);
+            }
+            System.out.println(line);
+            TelemetryRouter.INSTANCE.metric(line.toString());
+        }
+        TelemetryRouter.INSTANCE.flush();
+    }
+}
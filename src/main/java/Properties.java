@@ -3,29 +3,207 @@ import org.apache.commons.io.IOUtils;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Immutable, validated snapshot of /etc/iot.conf.
+ *
+ * The file is read once per process, current() returns the published snapshot, so a value costs a volatile read and
+ * a field access. Long running modes call watch(), a changed file is then loaded into a new snapshot and published
+ * when it is valid, once it had no changes for DEBOUNCE_MS. An invalid or unreadable file is logged and the previous
+ * snapshot stays. The Controller thresholds and the Sun limits are read from the snapshot on use, the TelemetryRouter
+ * rebuilds its sinks when their keys change. Ports and the serial device are only read at start up and still need a
+ * restart.
+ */
 public class Properties {
 
     public static final int redisExpireSeconds = 5*60;
-    public final int elevation;
+    private final static String FILE = "/etc/iot.conf";
+    /** The watcher reloads when the file had no events for this long */
+    private final static long DEBOUNCE_MS = 500;
+
+    private static volatile Properties current;
+
+    /** NaN when not configured, only Sun needs the location */
     public final double latitude, longitude;
-    public final java.util.Properties prop;
+    public final int elevation;
+
+    /** Collector orientation for ClearSky, degrees */
+    public final double collectorTilt, collectorAzimuth;
+
+    /** Sun.shining limits, degrees */
+    public final double minAzimuth, maxAzimuth, morningZenith, eveningZenith;
+
+    /** Controller thresholds, degrees Celsius */
+    public final double maxFlowOutTemp, legionellaTemp, maxSmallBoilerTemp, recycleMaxTemp, swapBoilerTempRise
+            , minFlowDelta, largeFlowDeltaThreshold, minSolarPipeTemp, boilerTempControlOffset;
+    public final long overheatTimeoutMs;
+
+    public final String usbSolar;
+    public final boolean binaryProtocol;
+    public final int aggregateWindowSeconds;
+
+    private final java.util.Properties prop;
+
+    private Properties(java.util.Properties prop) {
+        this.prop = prop;
+        List<String> errors = new ArrayList<>();
+
+        latitude = number(errors, "location.latitude", null, -90, 90);
+        longitude = number(errors, "location.longitude", null, -180, 180);
+        elevation = (int)number(errors, "location.elevation", "0", -500, 9000);
+        collectorTilt = number(errors, "collector.tilt", "45", 0, 90);
+        collectorAzimuth = number(errors, "collector.azimuth", "180", 0, 360);
+
+        minAzimuth = number(errors, "sun.minAzimuth", "95", 0, 360);
+        maxAzimuth = number(errors, "sun.maxAzimuth", "300", minAzimuth, 360);
+        morningZenith = number(errors, "sun.morningZenith", "79", 0, 90);
+        eveningZenith = number(errors, "sun.eveningZenith", "83", 0, 90);
+
+        maxFlowOutTemp = number(errors, "controller.maxFlowOutTemp", "95", 50, 110);
+        legionellaTemp = number(errors, "controller.legionellaTemp", "60", 50, 80);
+        maxSmallBoilerTemp = number(errors, "controller.maxSmallBoilerTemp", "70", legionellaTemp, 90);
+        recycleMaxTemp = number(errors, "controller.recycleMaxTemp", "40", 0, maxFlowOutTemp);
+        swapBoilerTempRise = number(errors, "controller.swapBoilerTempRise", "5", 0.5, 30);
+        minFlowDelta = number(errors, "controller.minFlowDelta", "0.5", 0, 10);
+        largeFlowDeltaThreshold = number(errors, "controller.largeFlowDeltaThreshold", "2", minFlowDelta, 30);
+        minSolarPipeTemp = number(errors, "controller.minSolarPipeTemp", "20", 0, 60);
+        boilerTempControlOffset = number(errors, "controller.boilerTempControlOffset", "5", 0, 30);
+        overheatTimeoutMs = (long)number(errors, "controller.overheatTimeoutMinutes", "30", 1, 24*60)*60*1000;
+
+        usbSolar = prop.getProperty("usb.solar");
+        binaryProtocol = !"ascii".equals(prop.getProperty("serial.protocol", "binary"));
+        aggregateWindowSeconds = (int)number(errors, "aggregate.window.seconds"
+                , String.valueOf(FrameAggregator.DEFAULT_WINDOW_SECONDS), 0, 24*60*60);
+
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException("Invalid " + FILE + ": " + errors);
+        }
+    }
+
+    /** Without a default value the key is optional and NaN when missing */
+    private double number(List<String> errors, String key, String defaultValue, double min, double max) {
+        String value = prop.getProperty(key, defaultValue);
+        if (value == null) {
+            return Double.NaN;
+        }
+        try {
+            double number = Double.parseDouble(value.trim());
+            if (number < min || number > max) {
+                errors.add(key + "=" + value + " is not between " + min + " and " + max);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            errors.add(key + "=" + value + " is not a number");
+            return Double.NaN;
+        }
+    }
+
+    /** The snapshot, loaded on first use. An invalid file at start up is fatal, like before. */
+    public static Properties current() {
+        Properties retVal = current;
+        if (retVal == null) {
+            synchronized (Properties.class) {
+                if (current == null) {
+                    current = new Properties(load());
+                }
+                retVal = current;
+            }
+        }
+        return retVal;
+    }
+
+    public String getProperty(String key) {
+        return prop.getProperty(key);
+    }
+
+    public String getProperty(String key, String defaultValue) {
+        return prop.getProperty(key, defaultValue);
+    }
 
-    public Properties()  {
+    public java.util.Set<String> stringPropertyNames() {
+        return prop.stringPropertyNames();
+    }
+
+    private static java.util.Properties load() {
+        try {
+            return read();
+        } catch (IOException e) {
+            // not through LogstashLogger, its sinks are configured from this file
+            System.out.println("Cannot load " + FILE + " " + e.toString());
+            return new java.util.Properties();
+        }
+    }
+
+    private static java.util.Properties read() throws IOException {
         InputStream inputStream = null;
-        prop = new java.util.Properties();
+        java.util.Properties prop = new java.util.Properties();
         try {
-            inputStream = new FileInputStream("/etc/iot.conf");
+            inputStream = new FileInputStream(FILE);
             prop.load(inputStream);
-        } catch (IOException e) {
-            System.out.println("Cannot load /etc/iot.conf " + e.toString());
-            LogstashLogger.INSTANCE.fatal("Cannot load /etc/iot.conf " + e.toString());
         } finally {
             IOUtils.closeQuietly(inputStream);
         }
+        return prop;
+    }
 
-        latitude = Double.parseDouble(prop.getProperty("location.latitude"));
-        longitude = Double.parseDouble(prop.getProperty("location.longitude"));
-        elevation = Integer.parseInt(prop.getProperty("location.elevation"));
+    /** Reloads the snapshot when the file changes, for the long running modes */
+    public static void watch() {
+        current();
+        Thread watcher = new Thread("PropertiesWatcher") {
+            @Override
+            public void run() {
+                Path file = Paths.get(FILE);
+                try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+                    // editors replace the file, so the directory is watched
+                    file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE
+                            , StandardWatchEventKinds.ENTRY_MODIFY);
+                    while (true) {
+                        if (changed(file, watchService.take())) {
+                            // an editor or deployment writes in several steps, reload once the file is quiet
+                            WatchKey key;
+                            while ((key = watchService.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS)) != null) {
+                                changed(file, key);
+                            }
+                            reload();
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    LogstashLogger.INSTANCE.error("Stopped watching " + FILE + " " + e.toString());
+                }
+            }
+        };
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private static boolean changed(Path file, WatchKey key) {
+        boolean retVal = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            retVal |= file.getFileName().equals(event.context());
+        }
+        key.reset();
+        return retVal;
+    }
+
+    private static void reload() {
+        try {
+            current = new Properties(read());
+            LogstashLogger.INSTANCE.info("Reloaded " + FILE);
+        } catch (IOException e) {
+            LogstashLogger.INSTANCE.error("Cannot reload " + FILE + " " + e.toString()
+                    + ", keeping the previous configuration");
+        } catch (IllegalArgumentException e) {
+            LogstashLogger.INSTANCE.error(e.getMessage() + ", keeping the previous configuration");
+        }
     }
 }
@@ -0,0 +1,286 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writer stage of the SolarSlave ingest pipeline.
+ *
+ * The serial thread submits decoded frames to a ring buffer and never waits for Redis. This thread drains the ring
+ * in batches and sends each batch as one MULTI/EXEC transaction. Before it, one pipelined round trip watches and reads
+ * solarslave.fence and reads back solarState, which the serial thread uses as its in-memory copy for the command
+ * reply. A fence that is not the token of the lease, or that changes before EXEC, means another SolarSlave took over:
+ * the batch is not written and this process exits (see SolarSlaveLease).
+ *
+ * Policy when the writer falls behind:
+ * - a full ring drops the newest frame (counted in solarslave.dropped), the controller sends a fresh one within seconds
+ * - a batch coalesces the temperature keys, only the last valid value per sensor is written
+ * - every frame in a batch is still added to pipe.TflowSet, the slope calculation needs all observations
+ */
+public class RedisFrameWriter implements Runnable {
+
+    /** Followed by the fencing token, the name of the writer connection in CLIENT LIST */
+    public final static String CLIENT_NAME = "solarslave.writer.";
+    private final static int RING_CAPACITY = 1024;
+    private final static int MAX_BATCH = 64;
+    private final static long IDLE_SYNC_MS = 1000;
+    private final static long METRICS_INTERVAL_MS = 10000;
+    private final static long RECONNECT_DELAY_MS = 2000;
+    /** The command copy is not trusted when Redis has not been read for this long */
+    private final static long STALE_STATE_MS = 60000;
+
+    private final FrameRing ring = new FrameRing(RING_CAPACITY);
+    private final SolarSlaveLease lease;
+    private final FrameAggregator aggregator;
+    private final AlertEngine alerts;
+    private final SensorHealth health = new SensorHealth();
+    private final ThermalEstimator thermal = new ThermalEstimator();
+    private volatile Thread thread;
+
+    private volatile SolarState commandState;
+    private volatile long commandStateMillis;
+
+    /** Request ids of manual commands written to the micro controller, see ControlHandler */
+    private final Queue<String> writtenCommands = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong maxReplyNanos = new AtomicLong();
+    private long written, batches, maxQueueDepth, maxQueueNanos, maxWriteNanos, lastMetricsMillis, lastSyncMillis;
+
+    /**
+     * @param aggregator receives every frame before it is written, null when aggregation is switched off
+     * @param alerts evaluates every frame before it is written, null without alert rules
+     */
+    public RedisFrameWriter(SolarState initialState, SolarSlaveLease lease, FrameAggregator aggregator
+            , AlertEngine alerts) {
+        this.lease = lease;
+        this.aggregator = aggregator;
+        this.alerts = alerts;
+        commandState = initialState;
+        commandStateMillis = System.currentTimeMillis();
+    }
+
+    public void start() {
+        thread = new Thread(this, "RedisFrameWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Called from the serial thread only */
+    public void submit(SolarFrame frame) {
+        if (!ring.offer(frame)) {
+            dropped.incrementAndGet();
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /** The last known controller command, error when Redis could not be read for a while */
+    public SolarState commandState() {
+        if (System.currentTimeMillis() - commandStateMillis > STALE_STATE_MS) {
+            return SolarState.error;
+        }
+        return commandState;
+    }
+
+    /** A manual command takes effect before the next Redis read */
+    public void command(SolarState state) {
+        commandState = state;
+        commandStateMillis = System.currentTimeMillis();
+    }
+
+    /** Reports a manual command as written in the next batch */
+    public void acknowledge(String requestId) {
+        writtenCommands.add(requestId);
+        LockSupport.unpark(thread);
+    }
+
+    /** Serial stage latency, from frame decoded to command reply flushed */
+    public void replied(SolarFrame frame) {
+        long replyNanos = System.nanoTime() - frame.receivedNanos;
+        long max = maxReplyNanos.get();
+        while (replyNanos > max && !maxReplyNanos.compareAndSet(max, replyNanos)) {
+            max = maxReplyNanos.get();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<SolarFrame> batch = new ArrayList<>(MAX_BATCH);
+        Jedis jedis = null;
+        while (true) {
+            try {
+                maxQueueDepth = Math.max(maxQueueDepth, ring.size());
+                SolarFrame frame;
+                while (batch.size() < MAX_BATCH && (frame = ring.poll()) != null) {
+                    batch.add(frame);
+                    health.add(frame);
+                    thermal.add(frame);
+                    if (aggregator != null) {
+                        aggregator.add(frame);
+                    }
+                    if (alerts != null) {
+                        alerts.add(frame);
+                    }
+                }
+                if (aggregator != null) {
+                    aggregator.tick(System.currentTimeMillis());
+                }
+                health.evaluate(System.currentTimeMillis());
+                if (alerts != null) {
+                    alerts.evaluate(System.currentTimeMillis());
+                }
+                if (batch.isEmpty() && writtenCommands.isEmpty()
+                        && System.currentTimeMillis() - lastSyncMillis < IDLE_SYNC_MS) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(IDLE_SYNC_MS));
+                    continue;
+                }
+
+                if (jedis == null) {
+                    jedis = new Jedis("localhost");
+                    jedis.clientSetname(CLIENT_NAME + lease.token());
+                }
+                write(jedis, batch);
+            } catch (JedisException e) {
+                LogstashLogger.INSTANCE.error("SolarSlave Redis writer failed, " + batch.size()
+                        + " frames lost " + e.toString());
+                dropped.addAndGet(batch.size());
+                jedis = close(jedis);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RECONNECT_DELAY_MS));
+            } catch (RuntimeException e) {
+                // a bad frame or a bug in a stage must not stop the writer, the batch is given up
+                LogstashLogger.INSTANCE.error("SolarSlave Redis writer error, " + batch.size()
+                        + " frames lost " + e.toString());
+                dropped.addAndGet(batch.size());
+                jedis = close(jedis);
+            }
+            batch.clear();
+        }
+    }
+
+    /** The connection may be halfway a transaction, start over with a new one */
+    private static Jedis close(Jedis jedis) {
+        if (jedis != null) {
+            try {
+                jedis.close();
+            } catch (JedisException e) {
+            }
+        }
+        return null;
+    }
+
+    private void write(Jedis jedis, List<SolarFrame> batch) {
+        if (!lease.isHeld()) {
+            throw new JedisException("SolarSlave lease has not been renewed, batch not written");
+        }
+        thermal.restore(jedis);
+        long startNanos = System.nanoTime();
+        Pipeline reads = jedis.pipelined();
+        reads.watch(SolarSlaveLease.FENCE_KEY);
+        Response<String> fence = reads.get(SolarSlaveLease.FENCE_KEY);
+        Response<String> solarState = reads.get("solarState");
+        Response<String> boiler200 = reads.get("boiler200.Ttop");
+        reads.sync();
+        if (!String.valueOf(lease.token()).equals(fence.get())) {
+            superseded(fence.get());
+        }
+
+        Transaction transaction = jedis.multi();
+
+        if (!batch.isEmpty()) {
+            String[] latest = new String[SolarFrame.SENSOR_COUNT];
+            String[] flowSet = new String[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                SolarFrame frame = batch.get(i);
+                for (int sensor = 0; sensor < SolarFrame.SENSOR_COUNT; sensor++) {
+                    if (!TemperatureSensor.isOutlier(frame.temperatures[sensor])) {
+                        latest[sensor] = frame.temperatures[sensor];
+                    }
+                }
+                flowSet[i] = Double.toString(((double)frame.receivedMillis)/(60*60*1000))
+                        + ":" + frame.temperatures[SolarFrame.TFLOWOUT];
+                maxQueueNanos = Math.max(maxQueueNanos, startNanos - frame.receivedNanos);
+            }
+            for (int sensor = 0; sensor < SolarFrame.SENSOR_COUNT; sensor++) {
+                if (latest[sensor] != null) {
+                    transaction.setex(SolarFrame.SENSOR_KEYS[sensor], Properties.redisExpireSeconds, latest[sensor]);
+                }
+            }
+            transaction.setex("solarStateReal", Properties.redisExpireSeconds
+                    , batch.get(batch.size() - 1).realState().name());
+            transaction.lpush("pipe.TflowSet", flowSet);
+            transaction.ltrim("pipe.TflowSet", 0, SolarSlave.T_SET_LENGTH);
+        }
+        String requestId;
+        while ((requestId = writtenCommands.poll()) != null) {
+            transaction.rpush(ControlHandler.COMMAND_WRITTEN + requestId, String.valueOf(System.currentTimeMillis()));
+            transaction.expire(ControlHandler.COMMAND_WRITTEN + requestId, 60);
+        }
+        thermal.write(transaction);
+        boolean metricsDue = System.currentTimeMillis() - lastMetricsMillis > METRICS_INTERVAL_MS;
+        if (health.changed() || metricsDue) {
+            writeHealth(transaction);
+        }
+        if (metricsDue) {
+            writeMetrics(transaction);
+        }
+        if (transaction.exec() == null) {
+            // EXEC is aborted when the watched fence changed since it was read
+            superseded(jedis.get(SolarSlaveLease.FENCE_KEY));
+        }
+
+        commandState = solarState.get() == null ? SolarState.error : SolarState.valueOf(solarState.get());
+        thermal.boiler200(boiler200.get());
+        lastSyncMillis = commandStateMillis = System.currentTimeMillis();
+        if (alerts != null) {
+            alerts.state(commandState, lastSyncMillis);
+        }
+        written += batch.size();
+        batches++;
+        maxWriteNanos = Math.max(maxWriteNanos, System.nanoTime() - startNanos);
+    }
+
+    private void superseded(String fence) {
+        LogstashLogger.INSTANCE.info("SolarSlave fence " + lease.token() + " superseded by " + fence
+                + ", batch not written, exiting");
+        System.exit(0);
+    }
+
+    private void writeHealth(Transaction transaction) {
+        for (int sensor = 0; sensor < SolarFrame.SENSOR_COUNT; sensor++) {
+            transaction.setex(SolarFrame.SENSOR_KEYS[sensor] + SensorHealth.SUFFIX, SensorHealth.HEALTH_TTL_SECONDS
+                    , health.status(sensor).name());
+            transaction.setex(SolarFrame.SENSOR_KEYS[sensor] + ".stepDeviation", SensorHealth.HEALTH_TTL_SECONDS
+                    , String.valueOf(health.standardDeviation(sensor)));
+        }
+    }
+
+    private void writeMetrics(Transaction transaction) {
+        transaction.setex("solarslave.queueDepth", Properties.redisExpireSeconds, String.valueOf(maxQueueDepth));
+        transaction.setex("solarslave.queueLatencyMs", Properties.redisExpireSeconds
+                , String.valueOf(TimeUnit.NANOSECONDS.toMillis(maxQueueNanos)));
+        transaction.setex("solarslave.writeLatencyMs", Properties.redisExpireSeconds
+                , String.valueOf(TimeUnit.NANOSECONDS.toMillis(maxWriteNanos)));
+        transaction.setex("solarslave.replyLatencyMs", Properties.redisExpireSeconds
+                , String.valueOf(TimeUnit.NANOSECONDS.toMillis(maxReplyNanos.getAndSet(0))));
+        transaction.setex("solarslave.written", Properties.redisExpireSeconds, String.valueOf(written));
+        transaction.setex("solarslave.batches", Properties.redisExpireSeconds, String.valueOf(batches));
+        transaction.setex("solarslave.dropped", Properties.redisExpireSeconds, String.valueOf(dropped.get()));
+        if (alerts != null) {
+            transaction.setex("solarslave.alertEvaluateUs", Properties.redisExpireSeconds
+                    , String.valueOf(TimeUnit.NANOSECONDS.toMicros(alerts.maxEvaluateNanos())));
+            transaction.setex("solarslave.alertsFiring", Properties.redisExpireSeconds
+                    , String.valueOf(alerts.firingCount()));
+        }
+        maxQueueDepth = maxQueueNanos = maxWriteNanos = 0;
+        lastMetricsMillis = System.currentTimeMillis();
+    }
+}
@@ -26,7 +26,8 @@ public class RedisHandler extends AbstractHandler {
 
         JSONArray redisResponse = new JSONArray();
         for (String key : all) {
-            if (!"pipe.TflowSet".equals(key)) {
+            // lists and hashes like pipe.TflowSet and the override audit are not dumped
+            if ("string".equals(jedis.type(key))) {
                 redisResponse.put(new JSONObject().put(key, new JSONObject()
                     .put("value", jedis.get(key))
                     .put("ttl", jedis.ttl(key))));
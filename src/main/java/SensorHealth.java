@@ -0,0 +1,144 @@
+/**
+ * Health of the temperature sensors, tracked on every frame by the SolarSlave Redis writer.
+ *
+ * A sensor that is unplugged or broken does not always disappear. The micro controller repeats the last good value
+ * on a read error, so a dead sensor freezes at a plausible temperature and its Redis key keeps being refreshed.
+ * Per sensor this keeps the last update time, the time since the value last changed and an exponentially weighted
+ * mean and variance of the frame to frame steps (O(1) per frame). A heating pipe has large but steady steps, a
+ * faulty reading a single step far outside the recent variation.
+ *
+ * The health is published as [sensor].health with a short TTL:
+ * - ok
+ * - stale, no valid reading for STALE_MS
+ * - flatline, the value has not changed at all for longer than a working sensor can. A pipe sensor only sees a
+ *   changing temperature with the pump running, it is only checked then and from the last pump or valve change
+ * - spike, a jump much larger than the recent variation or faster than water can change, held for SPIKE_HOLD_MS
+ *
+ * The pipe sensors legitimately jump when the pump starts or the valves switch, for PIPE_SETTLE_MS after a change of
+ * the real state or the pump in the frame they are not checked for spikes.
+ */
+public class SensorHealth {
+
+    public enum Status {ok, stale, flatline, spike}
+
+    public final static String SUFFIX = ".health";
+    public final static int HEALTH_TTL_SECONDS = 60;
+
+    private final static long STALE_MS = 60*1000;
+    private final static long PIPE_FLATLINE_MS = 45*60*1000;
+    private final static long BOILER_FLATLINE_MS = 8*60*60*1000;
+    private final static long SPIKE_HOLD_MS = 5*60*1000;
+    /** Weight of a new reading in the mean and variance, about the last 50 frames */
+    private final static double ALPHA = 0.04;
+    private final static double SPIKE_SIGMA = 6.0;
+    private final static double SPIKE_MIN_DELTA = 5.0;
+    /** Degrees Celsius per second, faster than the water in a pipe or boiler can change */
+    private final static double MAX_RATE = 2.0;
+    /** The new flow reaches the pipe sensors well within this time */
+    private final static long PIPE_SETTLE_MS = 3*60*1000;
+
+    private final long[] flatlineMs = new long[SolarFrame.SENSOR_COUNT];
+    private final double[] last = new double[SolarFrame.SENSOR_COUNT];
+    private final long[] lastUpdate = new long[SolarFrame.SENSOR_COUNT];
+    private final long[] unchangedSince = new long[SolarFrame.SENSOR_COUNT];
+    private final long[] spikeUntil = new long[SolarFrame.SENSOR_COUNT];
+    /** Exponentially weighted mean and variance of the step between two readings */
+    private final double[] mean = new double[SolarFrame.SENSOR_COUNT];
+    private final double[] variance = new double[SolarFrame.SENSOR_COUNT];
+    private final Status[] status = new Status[SolarFrame.SENSOR_COUNT];
+    private final boolean[] pipe = new boolean[SolarFrame.SENSOR_COUNT];
+    private boolean changed = true;
+    private SolarState lastState;
+    private boolean lastPump;
+    private long pipeSettledAt;
+
+    public SensorHealth() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < SolarFrame.SENSOR_COUNT; i++) {
+            pipe[i] = SolarFrame.SENSOR_KEYS[i].startsWith("pipe");
+            flatlineMs[i] = pipe[i] ? PIPE_FLATLINE_MS : BOILER_FLATLINE_MS;
+            lastUpdate[i] = now;
+            status[i] = Status.ok;
+        }
+    }
+
+    public void add(SolarFrame frame) {
+        SolarState state = frame.realState();
+        if (lastState != null && (state != lastState || frame.pump != lastPump)) {
+            pipeSettledAt = frame.receivedMillis + PIPE_SETTLE_MS;
+            for (int i = 0; i < SolarFrame.SENSOR_COUNT; i++) {
+                if (pipe[i] && unchangedSince[i] > 0) {
+                    unchangedSince[i] = frame.receivedMillis;
+                }
+            }
+        }
+        lastState = state;
+        lastPump = frame.pump;
+        boolean pipeSettling = frame.receivedMillis < pipeSettledAt;
+        for (int i = 0; i < SolarFrame.SENSOR_COUNT; i++) {
+            if (TemperatureSensor.isOutlier(frame.temperatures[i])) {
+                continue;
+            }
+            double temperature = Double.parseDouble(frame.temperatures[i]);
+            long now = frame.receivedMillis;
+            if (unchangedSince[i] == 0) {
+                unchangedSince[i] = now;
+            } else {
+                double step = temperature - last[i];
+                double seconds = Math.max(1.0, (now - lastUpdate[i])/1000.0);
+                boolean spike = Math.abs(step - mean[i]) > Math.max(SPIKE_MIN_DELTA, SPIKE_SIGMA*Math.sqrt(variance[i]))
+                        || (Math.abs(step) > 1.0 && Math.abs(step)/seconds > MAX_RATE);
+                if (spike && !(pipe[i] && pipeSettling)) {
+                    spikeUntil[i] = now + SPIKE_HOLD_MS;
+                }
+                double delta = step - mean[i];
+                mean[i] += ALPHA*delta;
+                variance[i] = (1.0 - ALPHA)*(variance[i] + ALPHA*delta*delta);
+                if (step != 0.0) {
+                    unchangedSince[i] = now;
+                }
+            }
+            last[i] = temperature;
+            lastUpdate[i] = now;
+        }
+        evaluate(frame.receivedMillis);
+    }
+
+    /** Also called without frames, so a silent sensor becomes stale */
+    public void evaluate(long now) {
+        for (int i = 0; i < SolarFrame.SENSOR_COUNT; i++) {
+            Status current;
+            if (now - lastUpdate[i] > STALE_MS) {
+                current = Status.stale;
+            } else if (now < spikeUntil[i]) {
+                current = Status.spike;
+            } else if (unchangedSince[i] > 0 && now - unchangedSince[i] > flatlineMs[i] && (!pipe[i] || lastPump)) {
+                current = Status.flatline;
+            } else {
+                current = Status.ok;
+            }
+            if (current != status[i]) {
+                LogstashLogger.INSTANCE.warn("Sensor " + SolarFrame.SENSOR_KEYS[i] + " health changed from "
+                        + status[i] + " to " + current + ", last value " + last[i]);
+                status[i] = current;
+                changed = true;
+            }
+        }
+    }
+
+    public Status status(int sensor) {
+        return status[sensor];
+    }
+
+    /** Of the frame to frame step */
+    public double standardDeviation(int sensor) {
+        return Math.sqrt(variance[sensor]);
+    }
+
+    /** True once after a status change, the writer then publishes right away instead of with the metrics */
+    public boolean changed() {
+        boolean retVal = changed;
+        changed = false;
+        return retVal;
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * One sensor frame from the solar micro controller, decoded from either the ASCII line or the binary frame format.
+ *
+ * Temperatures are kept as strings in the same two decimal notation the ASCII protocol uses, so Redis values do not
+ * depend on the protocol version. The sequence is -1 for ASCII frames, which carry no sequence number.
+ */
+public class SolarFrame {
+
+    public final static int SENSOR_COUNT = 5;
+    /** Redis keys of the temperatures, in frame order */
+    public final static String[] SENSOR_KEYS = {"boiler500.Ttop", "boiler500.Tmiddle", "boiler500.Tbottom"
+            , "pipe.TflowIn", "pipe.TflowOut"};
+    public final static int TFLOWOUT = 4;
+
+    public final int sequence;
+    public final String[] temperatures;
+    public final boolean valveI, valveII, pump;
+    /** Decode time, for the pipeline latency metrics and the TflowSet timestamp */
+    public final long receivedMillis = System.currentTimeMillis(), receivedNanos = System.nanoTime();
+
+    SolarFrame(int sequence, String[] temperatures, boolean valveI, boolean valveII, boolean pump) {
+        this.sequence = sequence;
+        this.temperatures = temperatures;
+        this.valveI = valveI;
+        this.valveII = valveII;
+        this.pump = pump;
+    }
+
+    /**
+     * Format: Ttop:Tmiddle:Tbottom:TflowIn:TflowOut:SvalveI:SvalveII:Spump
+     * @return the frame or null when the line is not a sensor frame
+     */
+    public static SolarFrame parseAscii(String line) {
+        String[] fields = line.split(":");
+        if (fields.length != SENSOR_COUNT + 3) {
+            return null;
+        }
+        String[] temperatures = new String[SENSOR_COUNT];
+        System.arraycopy(fields, 0, temperatures, 0, SENSOR_COUNT);
+        return new SolarFrame(-1, temperatures
+                , "T".equals(fields[5]), "T".equals(fields[6]), "T".equals(fields[7].trim()));
+    }
+
+    public boolean isBinary() {
+        return sequence >= 0;
+    }
+
+    public SolarState realState() {
+        return SolarState.principalState(valveI, valveII, pump);
+    }
+
+    /** Formats a fixed point temperature in hundredths of a degree like the Arduino prints a float */
+    static String centiToString(int centi) {
+        StringBuilder retVal = new StringBuilder(8);
+        if (centi < 0) {
+            retVal.append('-');
+            centi = -centi;
+        }
+        retVal.append(centi / 100).append('.');
+        int fraction = centi % 100;
+        if (fraction < 10) {
+            retVal.append('0');
+        }
+        return retVal.append(fraction).toString();
+    }
+}
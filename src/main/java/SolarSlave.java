@@ -1,11 +1,16 @@
 import gnu.io.CommPortIdentifier;
+import gnu.io.PortInUseException;
 import gnu.io.SerialPort;
 import gnu.io.SerialPortEvent;
 import gnu.io.SerialPortEventListener;
-import org.apache.commons.lang3.StringUtils;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisException;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.Socket;
 import java.util.Date;
 import java.util.Enumeration;
 
@@ -13,64 +18,90 @@ import java.util.Enumeration;
 /**
  * Created by Jaap on 25-7-2016.
  */
-public class SolarSlave implements SerialPortEventListener {
+public class SolarSlave implements SerialPortEventListener, FrameDecoder.Listener {
 
-    private final static int TTL = 60;
-    private final String startTime;
-    private static final String STARTTIME = "solarslave.starttime";
-    /**
-     * A BufferedReader which will be fed by a InputStreamReader
-     * converting the bytes into characters
-     * making the displayed results codepage independent
-     */
-    private BufferedReader input;
+    private final SolarSlaveLease lease;
+    private InputStream input;
+    private OutputStream output;
+    /** Instead of the serial port with usb.solar=tcp:[host]:[port], for the ArduinoEmulator */
+    private Socket socket;
+    private final byte[] readBuffer = new byte[256];
+    private final FrameDecoder decoder = new FrameDecoder(this);
     private SerialPort serialPort;
+    /** Offer the binary protocol to the controller (serial.protocol=binary, the default) */
+    private final boolean offerBinary;
+    private int asciiFramesSinceOffer = NEGOTIATION_INTERVAL;
+    private long reportedLinkErrors = 0;
+    private final RedisFrameWriter writer;
+    /** Sequence of the last binary frame, -1 while the controller talks ASCII */
+    private int lastSequence = -1;
+    /** Manual command waiting for the next ASCII reply */
+    private String pendingCommandId = null;
 
     Jedis jedis;
 
     /** Milliseconds to block while waiting for port open */
     private static final int TIME_OUT = 2000;
+    /** After a failover the former owner may still be closing the port */
+    private static final int PORT_OPEN_ATTEMPTS = 5;
     /** Default bits per second for COM port. */
     private static final int DATA_RATE = 9600;
     /** Set length is number of measurements in window (times 2 to be certain you have enough) */
     public static final int T_SET_LENGTH = (int)Controller.SLOPE_WINDOW_HR*60*60*2*2;
+    /** ASCII frames between binary protocol offers, firmware without binary support ignores one reply per interval */
+    private static final int NEGOTIATION_INTERVAL = 100;
+    private static final String TCP_PREFIX = "tcp:";
 
     public SolarSlave() {
-        startTime = String.valueOf(new Date().getTime());
-        jedis = new Jedis("localhost");
-
-        if (jedis.exists(STARTTIME)) {
+        lease = new SolarSlaveLease(new Date().getTime() + "@" + ManagementFactory.getRuntimeMXBean().getName());
+        if (!lease.acquire()) {
             LogstashLogger.INSTANCE.info("Exiting redundant SolarSlave");
-            jedis.close();
             System.exit(0);
         }
+        lease.startHeartbeat();
 
-        jedis.setex(STARTTIME, TTL, startTime);
+        jedis = new Jedis("localhost");
+        SolarState initialState = jedis.exists("solarState") ? SolarState.valueOf(jedis.get("solarState")) : SolarState.error;
         jedis.close();
 
-        Properties prop = new Properties();
+        Properties prop = Properties.current();
+        offerBinary = prop.binaryProtocol;
+        writer = new RedisFrameWriter(initialState, lease, aggregator(prop), AlertEngine.create(prop));
+        if (prop.usbSolar != null && prop.usbSolar.startsWith(TCP_PREFIX)) {
+            openSocket(prop.usbSolar.substring(TCP_PREFIX.length()));
+            addShutdownHook();
+            return;
+        }
         // the next line is for Raspberry Pi and
         // gets us into the while loop and was suggested here was suggested http://www.raspberrypi.org/phpBB3/viewtopic.php?f=81&t=32186
-        System.setProperty("gnu.io.rxtx.SerialPorts", prop.prop.getProperty("usb.solar"));
+        System.setProperty("gnu.io.rxtx.SerialPorts", prop.usbSolar);
 
         CommPortIdentifier portId = null;
         Enumeration portEnum = CommPortIdentifier.getPortIdentifiers();
 
         while (portEnum.hasMoreElements()) {
             CommPortIdentifier currPortId = (CommPortIdentifier) portEnum.nextElement();
-            if (currPortId.getName().equals(prop.prop.getProperty("usb.solar"))) {
+            if (currPortId.getName().equals(prop.usbSolar)) {
                 portId = currPortId;
                 break;
             }
         }
         if (portId == null) {
-            LogstashLogger.INSTANCE.error("Could not find USB at " + prop.prop.getProperty("usb.solar"));
-            return;
+            fail("Could not find USB at " + prop.usbSolar);
         }
 
         try {
             // open serial port, and use class name for the appName.
-            serialPort = (SerialPort) portId.open(this.getClass().getName(), TIME_OUT);
+            for (int attempt = 1; serialPort == null; attempt++) {
+                try {
+                    serialPort = (SerialPort) portId.open(this.getClass().getName(), TIME_OUT);
+                } catch (PortInUseException e) {
+                    if (attempt == PORT_OPEN_ATTEMPTS) {
+                        throw e;
+                    }
+                    Thread.sleep(1000);
+                }
+            }
 
             // set port parameters
             serialPort.setSerialPortParams(DATA_RATE,
@@ -79,91 +110,105 @@ public class SolarSlave implements SerialPortEventListener {
                     SerialPort.PARITY_NONE);
 
             // open the streams
-            input = new BufferedReader(new InputStreamReader(serialPort.getInputStream()));
+            input = serialPort.getInputStream();
+            output = serialPort.getOutputStream();
+
+            // start the Redis writer before frames start coming in
+            writer.start();
+            startCommandSubscriber();
 
             // add event listeners
             serialPort.addEventListener(this);
             serialPort.notifyOnDataAvailable(true);
         } catch (Exception e) {
-            System.err.println(e.toString());
+            fail("Could not open USB at " + prop.usbSolar + " " + e.toString());
         }
         addShutdownHook();
     }
 
+    /** The same byte stream as the serial port, read by its own thread */
+    private void openSocket(final String address) {
+        try {
+            String host = address.substring(0, address.lastIndexOf(':'));
+            int port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+            for (int attempt = 1; socket == null; attempt++) {
+                try {
+                    socket = new Socket(host, port);
+                } catch (ConnectException e) {
+                    if (attempt == PORT_OPEN_ATTEMPTS) {
+                        throw e;
+                    }
+                    Thread.sleep(1000);
+                }
+            }
+            socket.setTcpNoDelay(true);
+            input = socket.getInputStream();
+            output = socket.getOutputStream();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            fail("Could not connect to " + TCP_PREFIX + address + " " + e.toString());
+        }
+
+        writer.start();
+        startCommandSubscriber();
+        Thread reader = new Thread("SolarSlaveSocket") {
+            public void run() {
+                byte[] buffer = new byte[256];
+                try {
+                    while (true) {
+                        feed(buffer, input.read(buffer));
+                    }
+                } catch (IOException e) {
+                    LogstashLogger.INSTANCE.error("Problem reading from " + TCP_PREFIX + address + ", i will kill myself "
+                            + e.toString());
+                    close();
+                    System.exit(0);
+                }
+            }
+        };
+        reader.start();
+    }
+
+    /** Without the port this process must not keep the lease, a standby takes over right away */
+    private void fail(String message) {
+        LogstashLogger.INSTANCE.error(message + ", releasing the lease and exiting");
+        close();
+        System.exit(1);
+    }
+
+    private static FrameAggregator aggregator(Properties prop) {
+        if (prop.aggregateWindowSeconds <= 0) {
+            return null;
+        }
+        return new FrameAggregator(new FluxLogger(), prop.aggregateWindowSeconds);
+    }
+
     /**
      * This should be called when you stop using the port.
      * This will prevent port locking on platforms like Linux.
      */
     private synchronized void close() {
-        if (jedis == null || !jedis.isConnected()) {
-            jedis = new Jedis("localhost");
-        }
-        jedis.del(STARTTIME);
-        jedis.close();
+        lease.release();
         if (serialPort != null) {
             serialPort.removeEventListener();
             serialPort.close();
         }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
     }
 
     /**
-     * Handle an event on the serial port. Read the data and print it.
+     * Handle an event on the serial port. Decodes the frames, replies from the in-memory command state and hands
+     * the frames to the Redis writer. Nothing on this thread waits for Redis.
      */
     public synchronized void serialEvent(SerialPortEvent oEvent) {
-        jedis = new Jedis("localhost");
-        if (jedis.exists(STARTTIME) && !jedis.get(STARTTIME).equals(startTime)) {
-            LogstashLogger.INSTANCE.info("Connection hijack, exiting SolarSlave");
-            jedis.close();
-            System.exit(0);
-        }
-        jedis.setex(STARTTIME, TTL, startTime);
         if (oEvent.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
             try {
-                String inputLine = input.readLine();
-                if (StringUtils.countMatches(inputLine, ":") == 7) {
-                    //Format: Ttop:Tmiddle:Tbottom:TflowIn:TflowOut:SvalveI:SvalveII:Spump
-                    if (!TemperatureSensor.isOutlier(inputLine.split(":")[0])) {
-                        jedis.setex("boiler500.Ttop", Properties.redisExpireSeconds, inputLine.split(":")[0]);
-                    }
-                    if (!TemperatureSensor.isOutlier(inputLine.split(":")[1])) {
-                        jedis.setex("boiler500.Tmiddle", Properties.redisExpireSeconds, inputLine.split(":")[1]);
-                    }
-                    if (!TemperatureSensor.isOutlier(inputLine.split(":")[2])) {
-                        jedis.setex("boiler500.Tbottom", Properties.redisExpireSeconds, inputLine.split(":")[2]);
-                    }
-                    if (!TemperatureSensor.isOutlier(inputLine.split(":")[3])) {
-                        jedis.setex("pipe.TflowIn", Properties.redisExpireSeconds, inputLine.split(":")[3]);
-                    }
-                    if (!TemperatureSensor.isOutlier(inputLine.split(":")[4])) {
-                        jedis.setex("pipe.TflowOut", Properties.redisExpireSeconds, inputLine.split(":")[4]);
-                    }
-                    jedis.setex("solarStateReal", Properties.redisExpireSeconds, SolarState.principalState(
-                            "T".equals(inputLine.split(":")[5])
-                            ,"T".equals(inputLine.split(":")[6])
-                            , "T".equals(inputLine.split(":")[7])).name());
-
-                    jedis.lpush("pipe.TflowSet", Double.toString(((double)new Date().getTime())/(60*60*1000))
-                            + ":" + inputLine.split(":")[4]);
-                    jedis.ltrim("pipe.TflowSet", 0, T_SET_LENGTH);
-
-                    try {
-                        //Response format: [ValveI][ValveII][SolarPump]
-                        if (jedis.exists("solarState")) {
-                            SolarState state = SolarState.valueOf(jedis.get("solarState"));
-                            serialPort.getOutputStream().write(state.line());
-                        } else {
-                            serialPort.getOutputStream().write(SolarState.error.line());
-                        }
-                        serialPort.getOutputStream().flush();
-                    } catch (IOException e) {
-                        LogstashLogger.INSTANCE.error("Failed writing to solar controller");
-                        close();
-                        System.exit(0);
-                    }
-                } else if (inputLine.startsWith("log:")) {
-                    LogstashLogger.INSTANCE.message("iot-solar-controller", inputLine.substring(4).trim());
-                } else {
-                    LogstashLogger.INSTANCE.error("Received garbage from the Solar micro controller: " + inputLine);
+                while (input.available() > 0) {
+                    feed(readBuffer, input.read(readBuffer));
                 }
             } catch (IOException e) {
                 LogstashLogger.INSTANCE.error("Problem reading serial input from USB,i will kill myself" + e.toString());
@@ -171,7 +216,107 @@ public class SolarSlave implements SerialPortEventListener {
                 System.exit(0);
             }
         }
-        jedis.close();
+    }
+
+    private synchronized void feed(byte[] buffer, int length) throws IOException {
+        if (length < 0) {
+            throw new EOFException("Serial input closed");
+        }
+        decoder.feed(buffer, length);
+        reportLinkErrors();
+    }
+
+    @Override
+    public void onFrame(SolarFrame frame) {
+        lastSequence = frame.sequence;
+        SolarState state = writer.commandState();
+        try {
+            if (frame.isBinary()) {
+                output.write(FrameDecoder.ack(frame.sequence, state));
+            } else {
+                //Response format: [ValveI][ValveII][SolarPump], optionally followed by the binary protocol offer
+                output.write(state.line());
+                if (offerBinary && ++asciiFramesSinceOffer >= NEGOTIATION_INTERVAL) {
+                    asciiFramesSinceOffer = 0;
+                    output.write(FrameDecoder.BINARY_OFFER);
+                }
+            }
+            output.flush();
+            writer.replied(frame);
+            if (pendingCommandId != null) {
+                writer.acknowledge(pendingCommandId);
+                pendingCommandId = null;
+            }
+        } catch (IOException e) {
+            LogstashLogger.INSTANCE.error("Failed writing to solar controller");
+            close();
+            System.exit(0);
+        }
+        writer.submit(frame);
+    }
+
+    /**
+     * Manual commands from ControlHandler. In binary mode an extra acknowledgement with the command is written right
+     * away, the controller applies it in its next loop. The ASCII protocol allows one reply per frame, there the
+     * command goes out with the next reply.
+     */
+    private void startCommandSubscriber() {
+        Thread subscriber = new Thread("SolarSlaveCommands") {
+            public void run() {
+                while (true) {
+                    try (Jedis subscription = new Jedis("localhost")) {
+                        subscription.subscribe(new JedisPubSub() {
+                            @Override
+                            public void onMessage(String channel, String message) {
+                                push(SolarState.valueOf(message.split(":")[0]), message.split(":")[1]);
+                            }
+                        }, ControlHandler.COMMAND_CHANNEL);
+                    } catch (JedisException e) {
+                        LogstashLogger.INSTANCE.warn("SolarSlave command subscription failed " + e.toString());
+                        try {
+                            Thread.sleep(5000);
+                        } catch (InterruptedException ie) {
+                        }
+                    }
+                }
+            }
+        };
+        subscriber.setDaemon(true);
+        subscriber.start();
+    }
+
+    private synchronized void push(SolarState state, String requestId) {
+        writer.command(state);
+        if (lastSequence < 0) {
+            pendingCommandId = requestId;
+            return;
+        }
+        try {
+            output.write(FrameDecoder.ack(lastSequence, state));
+            output.flush();
+            writer.acknowledge(requestId);
+        } catch (IOException e) {
+            LogstashLogger.INSTANCE.error("Failed writing manual command to solar controller");
+        }
+    }
+
+    private void reportLinkErrors() {
+        long linkErrors = decoder.crcErrors + decoder.lostFrames + decoder.duplicateFrames;
+        if (linkErrors != reportedLinkErrors) {
+            reportedLinkErrors = linkErrors;
+            LogstashLogger.INSTANCE.warn("Serial link errors, crc: " + decoder.crcErrors + ", lost: "
+                    + decoder.lostFrames + ", duplicate: " + decoder.duplicateFrames
+                    + " of " + decoder.binaryFrames + " binary frames");
+        }
+    }
+
+    @Override
+    public void onLine(String line) {
+        if (line.startsWith("log:")) {
+            LogstashLogger.INSTANCE.message("iot-solar-controller", line.substring(4).trim());
+        } else {
+            LogstashLogger.INSTANCE.error("Received garbage from the Solar micro controller: " + line);
+        }
     }
 
     public void run() {
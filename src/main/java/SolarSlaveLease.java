@@ -0,0 +1,137 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Leadership lease for the SolarSlave, only one process may read the serial port.
+ *
+ * The lease is a Redis key with a short TTL, renewed by a heartbeat thread independent of serial traffic. Every
+ * acquisition increments the fence counter and the new value is the fencing token of the owner. isHeld() only
+ * compares the local clock with the last renewal, the fence is what protects Redis: the writer WATCHes the fence,
+ * checks it against the token and writes the batch in MULTI/EXEC, so a stalled former owner writes nothing after a
+ * standby took over and exits when it wakes up.
+ *
+ * Main failover runs the failover with SIGKILL and SIGSTOP against the local Redis, see FailoverCheck.
+ */
+public class SolarSlaveLease implements Runnable {
+
+    public final static String LEASE_KEY = "solarslave.lease";
+    public final static String FENCE_KEY = "solarslave.fence";
+
+    public final static long LEASE_TTL_MS = 5000;
+    private final static long RENEW_INTERVAL_MS = 1000;
+    public final static long POLL_INTERVAL_MS = 1000;
+    private final static long STANDBY_MS = 55000;
+
+    private final static String RENEW_SCRIPT = "if redis.call('get', KEYS[1]) == ARGV[1] then "
+            + "return redis.call('pexpire', KEYS[1], ARGV[2]) else return 0 end";
+    private final static String RELEASE_SCRIPT = "if redis.call('get', KEYS[1]) == ARGV[1] then "
+            + "return redis.call('del', KEYS[1]) else return 0 end";
+
+    private final String owner;
+    private long token = -1;
+    private volatile long renewedMillis;
+    private long renewals = 0;
+
+    public SolarSlaveLease(String owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Blocks while another SolarSlave holds the lease, at most STANDBY_MS.
+     * @return true when this process is the owner
+     */
+    public boolean acquire() {
+        long standbyUntil = System.currentTimeMillis() + STANDBY_MS;
+        long lastSeenRenewal = 0;
+        Jedis jedis = new Jedis("localhost");
+        try {
+            while (true) {
+                if ("OK".equals(jedis.set(LEASE_KEY, owner, "NX", "PX", LEASE_TTL_MS))) {
+                    renewedMillis = System.currentTimeMillis();
+                    token = jedis.incr(FENCE_KEY);
+                    if (lastSeenRenewal > 0) {
+                        long failoverMs = renewedMillis - lastSeenRenewal;
+                        jedis.setex("solarslave.failoverMs", Properties.redisExpireSeconds, String.valueOf(failoverMs));
+                        LogstashLogger.INSTANCE.info("Standby SolarSlave took over the lease " + failoverMs
+                                + "ms after the last renewal, fence " + token);
+                    }
+                    return true;
+                }
+                Long ttl = jedis.pttl(LEASE_KEY);
+                if (ttl != null && ttl > 0) {
+                    lastSeenRenewal = System.currentTimeMillis() - (LEASE_TTL_MS - ttl);
+                }
+                if (System.currentTimeMillis() > standbyUntil) {
+                    return false;
+                }
+                sleep(POLL_INTERVAL_MS);
+            }
+        } finally {
+            jedis.close();
+        }
+    }
+
+    public void startHeartbeat() {
+        Thread heartbeat = new Thread(this, "SolarSlaveLease");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+    }
+
+    public long token() {
+        return token;
+    }
+
+    /** True while the last renewal is younger than the lease TTL */
+    public boolean isHeld() {
+        return token > 0 && System.currentTimeMillis() - renewedMillis < LEASE_TTL_MS;
+    }
+
+    @Override
+    public void run() {
+        Jedis jedis = null;
+        while (true) {
+            sleep(RENEW_INTERVAL_MS);
+            try {
+                if (jedis == null) {
+                    jedis = new Jedis("localhost");
+                }
+                if (Long.valueOf(0).equals(jedis.eval(RENEW_SCRIPT, 1, LEASE_KEY, owner, String.valueOf(LEASE_TTL_MS)))) {
+                    LogstashLogger.INSTANCE.info("SolarSlave lost its lease, exiting");
+                    System.exit(0);
+                }
+                renewedMillis = System.currentTimeMillis();
+                if (++renewals % 10 == 0) {
+                    jedis.setex("solarslave.leaseRenewals", Properties.redisExpireSeconds, String.valueOf(renewals));
+                }
+            } catch (JedisException e) {
+                if (jedis != null) {
+                    jedis.close();
+                    jedis = null;
+                }
+                if (!isHeld()) {
+                    LogstashLogger.INSTANCE.error("SolarSlave could not renew its lease, exiting " + e.toString());
+                    System.exit(0);
+                }
+            }
+        }
+    }
+
+    /** Gives up the lease so a standby can take over right away, no effect when another process owns it */
+    public void release() {
+        if (token < 0) {
+            return;
+        }
+        try (Jedis jedis = new Jedis("localhost")) {
+            jedis.eval(RELEASE_SCRIPT, 1, LEASE_KEY, owner);
+        } catch (JedisException e) {
+            LogstashLogger.INSTANCE.warn("SolarSlave could not release its lease " + e.toString());
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+        }
+    }
+}
@@ -11,17 +11,19 @@ import java.util.GregorianCalendar;
 public class Sun {
 
     private final Properties prop;
-    private final static double MIN_AZIMUTH = 95.0;
-    private final static double MAX_AZIMUTH = 300.0;
-    private final static double MORNING_ZENITH = 79.0;
-    private final static double EVENING_ZENITH = 83.0;
 
     public Sun() {
-        prop = new Properties();
+        prop = Properties.current();
+        if (Double.isNaN(prop.latitude) || Double.isNaN(prop.longitude)) {
+            throw new IllegalStateException("location.latitude and location.longitude are not configured");
+        }
     }
 
     public AzimuthZenithAngle position() {
-        final GregorianCalendar dateTime = new GregorianCalendar();
+        return position(new GregorianCalendar());
+    }
+
+    public AzimuthZenithAngle position(GregorianCalendar dateTime) {
         AzimuthZenithAngle position = SPA.calculateSolarPosition(
                 dateTime,
                 prop.latitude, prop.longitude, prop.elevation,
@@ -35,13 +37,13 @@ public class Sun {
         boolean retVal;
         AzimuthZenithAngle position = position();
         if (Calendar.getInstance().get(Calendar.HOUR_OF_DAY) < 12) {
-            retVal = position.getAzimuth() < MAX_AZIMUTH
-                    && position.getAzimuth() > MIN_AZIMUTH
-                    && position.getZenithAngle() < MORNING_ZENITH;
+            retVal = position.getAzimuth() < prop.maxAzimuth
+                    && position.getAzimuth() > prop.minAzimuth
+                    && position.getZenithAngle() < prop.morningZenith;
         } else {
-            retVal = position.getAzimuth() < MAX_AZIMUTH
-                    && position.getAzimuth() > MIN_AZIMUTH
-                    && position.getZenithAngle() < EVENING_ZENITH;
+            retVal = position.getAzimuth() < prop.maxAzimuth
+                    && position.getAzimuth() > prop.minAzimuth
+                    && position.getZenithAngle() < prop.eveningZenith;
         }
 
         return retVal;
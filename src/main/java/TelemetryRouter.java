@@ -0,0 +1,248 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Fans the FluxLogger metrics and LogstashLogger log lines out to the configured sinks.
+ *
+ * Every sink has its own bounded queue and worker (see TelemetrySink), the caller only enqueues. Sinks are listed in
+ * /etc/iot.conf, for example:
+ *
+ * telemetry.sinks=influx,logstash,archive
+ * telemetry.sink.influx.type=udp (ip and port default to influx.ip and influx.port)
+ * telemetry.sink.influx.accepts=metric
+ * telemetry.sink.archive.type=file
+ * telemetry.sink.archive.path=/home/pi/telemetry.log (maxBytes, keep)
+ * telemetry.sink.archive.accepts=metric,log
+ * telemetry.sink.central.type=http
+ * telemetry.sink.central.url=http://host:8086/write?db=iot (batch)
+ *
+ * Without telemetry.sinks the router sends metrics to influx.ip and logs to logstash.ip, as before. Long running
+ * processes send a telemetry record per sink every minute with its throughput, queue depth, drops and errors. At
+ * exit the queues get FLUSH_MS to drain.
+ *
+ * Routing a record takes no lock: it reads the published sink array and compares the Properties snapshot with the
+ * one the sinks were checked against, only a new snapshot goes through configure().
+ */
+public class TelemetryRouter {
+
+    public enum Type {metric, log}
+
+    public final static TelemetryRouter INSTANCE = new TelemetryRouter();
+
+    private final static int DEFAULT_CAPACITY = 10000;
+    private final static long FLUSH_MS = 2000;
+    private final static long STATISTICS_MS = 60*1000;
+
+    /** Published once per configuration, route reads it without a lock. Empty when records go to stdout */
+    private volatile TelemetrySink[] sinks;
+    /** The snapshot the sinks were checked against */
+    private volatile Properties source;
+    private String configuration;
+    private boolean configuring = false;
+
+    private TelemetryRouter() {
+    }
+
+    public void metric(String line) {
+        route(Type.metric, line);
+    }
+
+    public void log(String line) {
+        route(Type.log, line);
+    }
+
+    private void route(Type type, String record) {
+        TelemetrySink[] current = sinks;
+        if (current == null || snapshot() != source) {
+            current = configure();
+        }
+        if (current.length == 0) {
+            System.out.println(record);
+            return;
+        }
+        for (TelemetrySink sink : current) {
+            if (sink.accepts(type)) {
+                sink.offer(record);
+            }
+        }
+    }
+
+    /** Waits at most FLUSH_MS for the queues to drain */
+    public void flush() {
+        TelemetrySink[] current = sinks;
+        if (current != null) {
+            flush(current);
+        }
+    }
+
+    private static void flush(TelemetrySink[] sinks) {
+        long until = System.currentTimeMillis() + FLUSH_MS;
+        for (TelemetrySink sink : sinks) {
+            while (!sink.isIdle() && System.currentTimeMillis() < until) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /** null when /etc/iot.conf cannot be loaded, LogstashLogger must keep working then */
+    private static Properties snapshot() {
+        try {
+            return Properties.current();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The sinks are set up with the first record, LogstashLogger may be used while the configuration is read. A new
+     * snapshot of /etc/iot.conf only replaces the sinks when their keys changed, the old sinks drain and stop
+     * after a grace period, so callers that still hold the old array do not lose records (see TelemetrySink).
+     */
+    private synchronized TelemetrySink[] configure() {
+        Properties prop = snapshot();
+        if (configuring || (sinks != null && prop == source)) {
+            return sinks == null ? new TelemetrySink[0] : sinks;
+        }
+        configuring = true;
+        try {
+            String changed = configuration(prop);
+            if (sinks == null || !changed.equals(configuration)) {
+                TelemetrySink[] retired = sinks;
+                sinks = build(prop);
+                configuration = changed;
+                if (retired == null) {
+                    start();
+                } else {
+                    for (TelemetrySink sink : retired) {
+                        sink.retire();
+                    }
+                }
+            }
+            source = prop;
+            return sinks;
+        } finally {
+            configuring = false;
+        }
+    }
+
+    /** The keys the sinks are built from */
+    private static String configuration(Properties prop) {
+        if (prop == null) {
+            return "";
+        }
+        StringBuilder retVal = new StringBuilder();
+        for (String key : new TreeSet<>(prop.stringPropertyNames())) {
+            if (key.startsWith("telemetry.") || key.startsWith("influx.") || key.startsWith("logstash.")) {
+                retVal.append(key).append('=').append(prop.getProperty(key)).append('\n');
+            }
+        }
+        return retVal.toString();
+    }
+
+    private static TelemetrySink[] build(Properties prop) {
+        List<TelemetrySink> configuredSinks = new ArrayList<>();
+        try {
+            if (prop == null) {
+                throw new IllegalStateException("no configuration");
+            }
+            String names = prop.getProperty("telemetry.sinks");
+            if (names == null) {
+                if (prop.getProperty("influx.ip") != null) {
+                    configuredSinks.add(new TelemetrySink.Udp("influx", EnumSet.of(Type.metric), DEFAULT_CAPACITY
+                            , InetAddress.getByName(prop.getProperty("influx.ip"))
+                            , Integer.parseInt(prop.getProperty("influx.port"))));
+                }
+                configuredSinks.add(new TelemetrySink.Udp("logstash", EnumSet.of(Type.log), DEFAULT_CAPACITY
+                        , InetAddress.getByName(prop.getProperty("logstash.ip"))
+                        , Integer.parseInt(prop.getProperty("logstash.port"))));
+            } else {
+                for (String name : names.split(",")) {
+                    configuredSinks.add(sink(prop, name.trim()));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Telemetry sinks not configured, records go to stdout " + e.toString());
+            configuredSinks.clear();
+        }
+        for (TelemetrySink sink : configuredSinks) {
+            sink.start();
+        }
+        return configuredSinks.toArray(new TelemetrySink[configuredSinks.size()]);
+    }
+
+    /** Once, with the first sinks */
+    private void start() {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+        Thread statistics = new Thread("TelemetryStatistics") {
+            @Override
+            public void run() {
+                statistics();
+            }
+        };
+        statistics.setDaemon(true);
+        statistics.start();
+    }
+
+    private static TelemetrySink sink(Properties prop, String name) throws IOException {
+        String prefix = "telemetry.sink." + name + ".";
+        EnumSet<Type> accepts = EnumSet.noneOf(Type.class);
+        for (String type : prop.getProperty(prefix + "accepts", "metric,log").split(",")) {
+            accepts.add(Type.valueOf(type.trim()));
+        }
+        int capacity = Integer.parseInt(prop.getProperty(prefix + "capacity", String.valueOf(DEFAULT_CAPACITY)));
+        switch (prop.getProperty(prefix + "type", "udp")) {
+            case "file":
+                return new TelemetrySink.RotatingFile(name, accepts, capacity, new File(prop.getProperty(prefix + "path"))
+                        , Long.parseLong(prop.getProperty(prefix + "maxBytes", String.valueOf(10*1024*1024)))
+                        , Integer.parseInt(prop.getProperty(prefix + "keep", "5")));
+            case "http":
+                return new TelemetrySink.HttpBatch(name, accepts, capacity, new URL(prop.getProperty(prefix + "url"))
+                        , Integer.parseInt(prop.getProperty(prefix + "batch", "500")));
+            default:
+                Type defaultTarget = accepts.contains(Type.log) ? Type.log : Type.metric;
+                String defaultPrefix = defaultTarget == Type.log ? "logstash." : "influx.";
+                return new TelemetrySink.Udp(name, accepts, capacity
+                        , InetAddress.getByName(prop.getProperty(prefix + "ip", prop.getProperty(defaultPrefix + "ip")))
+                        , Integer.parseInt(prop.getProperty(prefix + "port", prop.getProperty(defaultPrefix + "port"))));
+        }
+    }
+
+    private void statistics() {
+        TelemetrySink[] measured = sinks;
+        long[] lastSent = new long[measured.length];
+        while (true) {
+            try {
+                Thread.sleep(STATISTICS_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (sinks != measured) {
+                measured = sinks;
+                lastSent = new long[measured.length];
+            }
+            for (int i = 0; i < measured.length; i++) {
+                TelemetrySink sink = measured[i];
+                long sent = sink.sent.get();
+                metric("telemetry,sink=" + sink.name + " throughput=" + (sent - lastSent[i])*1000.0/STATISTICS_MS
+                        + ",queue=" + sink.queueDepth() + "i,sent=" + sent + "i,dropped=" + sink.dropped.get()
+                        + "i,errors=" + sink.errors.get() + "i");
+                lastSent[i] = sent;
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One destination of the TelemetryRouter, with its own bounded queue and worker thread.
+ *
+ * offer never blocks: a full queue drops the record and counts it. The worker writes batches, a failed batch is
+ * retried with a growing delay and dropped after RETRIES attempts. A slow or dead sink only fills its own queue.
+ */
+public abstract class TelemetrySink implements Runnable {
+
+    private final static int RETRIES = 3;
+    private final static long RETRY_DELAY_MS = 1000;
+    /** A retired sink keeps accepting records this long, for the callers still holding the previous sink array */
+    private final static long RETIRE_GRACE_MS = 10000;
+
+    public final String name;
+    private final EnumSet<TelemetryRouter.Type> accepts;
+    private final BlockingQueue<String> queue;
+    private final int maxBatch;
+    /** Queued or being written */
+    private final AtomicLong pending = new AtomicLong();
+    /** Replaced by a new configuration, the worker stops once the queue is empty after RETIRE_GRACE_MS */
+    private volatile long retiredAt = 0;
+    /** The worker stopped, a record offered now is dropped and counted */
+    private volatile boolean closed = false;
+
+    final AtomicLong sent = new AtomicLong(), dropped = new AtomicLong(), errors = new AtomicLong();
+
+    TelemetrySink(String name, EnumSet<TelemetryRouter.Type> accepts, int capacity, int maxBatch) {
+        this.name = name;
+        this.accepts = accepts;
+        queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatch = maxBatch;
+    }
+
+    void start() {
+        Thread worker = new Thread(this, "TelemetrySink-" + name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    void retire() {
+        retiredAt = System.currentTimeMillis();
+    }
+
+    boolean accepts(TelemetryRouter.Type type) {
+        return accepts.contains(type);
+    }
+
+    void offer(String record) {
+        pending.incrementAndGet();
+        if (!queue.offer(record)) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+        } else if (closed) {
+            // the worker stopped after its last drain, nobody else empties the queue
+            List<String> late = new ArrayList<>();
+            queue.drainTo(late);
+            pending.addAndGet(-late.size());
+            dropped.addAndGet(late.size());
+        }
+    }
+
+    int queueDepth() {
+        return queue.size();
+    }
+
+    boolean isIdle() {
+        return pending.get() == 0;
+    }
+
+    @Override
+    public void run() {
+        List<String> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            try {
+                String first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    if (retiredAt > 0 && System.currentTimeMillis() - retiredAt > RETIRE_GRACE_MS) {
+                        closed = true;
+                        queue.drainTo(batch);
+                        if (!batch.isEmpty()) {
+                            writeWithRetry(batch);
+                        }
+                        close();
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+                writeWithRetry(batch);
+            } catch (InterruptedException e) {
+            } finally {
+                pending.addAndGet(-batch.size());
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeWithRetry(List<String> batch) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                write(batch);
+                sent.addAndGet(batch.size());
+                return;
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                if (attempt == RETRIES) {
+                    dropped.addAndGet(batch.size());
+                    // not through LogstashLogger, that could be the failing sink
+                    System.out.println("Telemetry sink " + name + " dropped " + batch.size() + " records " + e.toString());
+                    return;
+                }
+                Thread.sleep(RETRY_DELAY_MS*attempt);
+            }
+        }
+    }
+
+    abstract void write(List<String> batch) throws IOException;
+
+    /** After the last write of a retired sink */
+    void close() {
+    }
+
+    /** A datagram per record, the way FluxLogger and LogstashLogger used to send */
+    static class Udp extends TelemetrySink {
+        private final InetAddress host;
+        private final int port;
+        private final DatagramSocket socket;
+
+        Udp(String name, EnumSet<TelemetryRouter.Type> accepts, int capacity, InetAddress host, int port)
+                throws IOException {
+            super(name, accepts, capacity, 100);
+            this.host = host;
+            this.port = port;
+            socket = new DatagramSocket();
+        }
+
+        @Override
+        void write(List<String> batch) throws IOException {
+            for (String record : batch) {
+                byte[] data = record.getBytes(StandardCharsets.UTF_8);
+                socket.send(new DatagramPacket(data, data.length, host, port));
+            }
+        }
+
+        @Override
+        void close() {
+            socket.close();
+        }
+    }
+
+    /** Local copy, "[epoch millis] [record]" per line, rotated to [path].1 .. [path].[keep] at maxBytes */
+    static class RotatingFile extends TelemetrySink {
+        private final File file;
+        private final long maxBytes;
+        private final int keep;
+
+        RotatingFile(String name, EnumSet<TelemetryRouter.Type> accepts, int capacity, File file, long maxBytes, int keep) {
+            super(name, accepts, capacity, 1000);
+            this.file = file;
+            this.maxBytes = maxBytes;
+            this.keep = keep;
+        }
+
+        @Override
+        void write(List<String> batch) throws IOException {
+            if (file.length() > maxBytes) {
+                rotate();
+            }
+            StringBuilder lines = new StringBuilder();
+            String time = String.valueOf(System.currentTimeMillis());
+            for (String record : batch) {
+                lines.append(time).append(' ').append(record).append('\n');
+            }
+            try (OutputStream out = new FileOutputStream(file, true)) {
+                out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        private void rotate() {
+            new File(file.getPath() + "." + keep).delete();
+            for (int i = keep - 1; i > 0; i--) {
+                new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+            }
+            file.renameTo(new File(file.getPath() + ".1"));
+        }
+    }
+
+    /** Newline separated batches posted to an endpoint, for example InfluxDB /write */
+    static class HttpBatch extends TelemetrySink {
+        private final URL url;
+
+        HttpBatch(String name, EnumSet<TelemetryRouter.Type> accepts, int capacity, URL url, int maxBatch) {
+            super(name, accepts, capacity, maxBatch);
+            this.url = url;
+        }
+
+        @Override
+        void write(List<String> batch) throws IOException {
+            StringBuilder body = new StringBuilder();
+            for (String record : batch) {
+                body.append(record).append('\n');
+            }
+            byte[] data = body.toString().getBytes(StandardCharsets.UTF_8);
+            HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+            connection.setConnectTimeout(5000);
+            connection.setReadTimeout(10000);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+            connection.setFixedLengthStreamingMode(data.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(data);
+            }
+            int status = connection.getResponseCode();
+            connection.disconnect();
+            if (status / 100 != 2) {
+                throw new IOException(url + " responded " + status);
+            }
+        }
+    }
+}
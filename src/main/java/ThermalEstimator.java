@@ -0,0 +1,276 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Transaction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Feeds the ThermalModel of each boiler from the frame stream, on the SolarSlave Redis writer thread.
+ *
+ * Per boiler the frames are summed into samples of SAMPLE_MINUTES. boiler500 is the mean of its three sensors,
+ * boiler200 is boiler200.Ttop, read from Redis with every batch (it is not in the frame). The flow goes through the
+ * boiler when the valves and pump in the frame say so.
+ *
+ * With every sample the writer stores:
+ * - thermal.checkpoint, a hash with the model state per boiler, restored when the SolarSlave starts
+ * - thermal.samples, the samples themselves, replayed by Main ThermalReport
+ * - thermal.[boiler].coilPerHour, lossPerHour, ambient, residual, residualRms and slopeResidualRms, also sent as a
+ *   thermal metric
+ */
+public class ThermalEstimator {
+
+    public final static int SAMPLE_MINUTES = 5;
+    private final static long SAMPLE_MS = SAMPLE_MINUTES*60*1000;
+    public final static String[] BOILERS = {"boiler500", "boiler200"};
+    public final static String CHECKPOINT = "thermal.checkpoint";
+    public final static String SAMPLES = "thermal.samples";
+    /** About five weeks of samples of both boilers */
+    private final static int SAMPLES_LENGTH = 20000;
+    private final static int EXPOSE_SECONDS = 3*SAMPLE_MINUTES*60;
+    private final static int BOILER500 = 0, BOILER200 = 1;
+    private final static double SYNTHETIC_NOISE = 0.05;
+
+    private final ThermalModel[] models = {new ThermalModel(), new ThermalModel()};
+    private final long[] startMillis = new long[BOILERS.length], lastMillis = new long[BOILERS.length];
+    private final double[] startTemperature = new double[BOILERS.length], lastTemperature = new double[BOILERS.length];
+    private final double[] sumTemperature = new double[BOILERS.length], sumCoilDelta = new double[BOILERS.length];
+    private final int[] count = new int[BOILERS.length], heatingCount = new int[BOILERS.length];
+    private final boolean[] updated = new boolean[BOILERS.length];
+    private final List<String> pendingSamples = new ArrayList<>();
+    private double boiler200Temperature = Double.NaN;
+    private boolean restored = false;
+
+    /** The first time the writer connects to Redis */
+    public void restore(Jedis jedis) {
+        if (restored) {
+            return;
+        }
+        restored = true;
+        Map<String, String> checkpoints = jedis.hgetAll(CHECKPOINT);
+        for (int boiler = 0; boiler < BOILERS.length; boiler++) {
+            if (checkpoints.containsKey(BOILERS[boiler])) {
+                try {
+                    models[boiler].restore(checkpoints.get(BOILERS[boiler]));
+                } catch (RuntimeException e) {
+                    LogstashLogger.INSTANCE.error("Thermal model checkpoint of " + BOILERS[boiler] + " ignored " + e.toString());
+                }
+            }
+        }
+    }
+
+    /** boiler200.Ttop as read back with the last batch, null when missing */
+    public void boiler200(String temperature) {
+        boiler200Temperature = temperature == null || TemperatureSensor.isOutlier(temperature) ? Double.NaN
+                : Double.parseDouble(temperature);
+    }
+
+    public void add(SolarFrame frame) {
+        String[] temperatures = frame.temperatures;
+        double coil = Double.NaN;
+        if (!TemperatureSensor.isOutlier(temperatures[3]) && !TemperatureSensor.isOutlier(temperatures[4])) {
+            coil = (Double.parseDouble(temperatures[3]) + Double.parseDouble(temperatures[4]))/2.0;
+        }
+        SolarState state = frame.realState();
+        if (!TemperatureSensor.isOutlier(temperatures[0]) && !TemperatureSensor.isOutlier(temperatures[1])
+                && !TemperatureSensor.isOutlier(temperatures[2])) {
+            double boiler500 = (Double.parseDouble(temperatures[0]) + Double.parseDouble(temperatures[1])
+                    + Double.parseDouble(temperatures[2]))/3.0;
+            add(BOILER500, frame.receivedMillis, boiler500, coil, state == SolarState.boiler500 && frame.pump);
+        }
+        if (!Double.isNaN(boiler200Temperature)) {
+            add(BOILER200, frame.receivedMillis, boiler200Temperature, coil, state == SolarState.boiler200 && frame.pump);
+        }
+    }
+
+    private void add(int boiler, long millis, double temperature, double coil, boolean heating) {
+        if (count[boiler] > 0 && millis - lastMillis[boiler] > 2*SAMPLE_MS) {
+            // a gap in the frames, start over
+            count[boiler] = 0;
+        }
+        if (count[boiler] > 0 && millis - startMillis[boiler] >= SAMPLE_MS) {
+            sample(boiler);
+            count[boiler] = 0;
+        }
+        if (count[boiler] == 0) {
+            startMillis[boiler] = millis;
+            startTemperature[boiler] = temperature;
+            sumTemperature[boiler] = sumCoilDelta[boiler] = 0.0;
+            heatingCount[boiler] = 0;
+        }
+        heating &= !Double.isNaN(coil);
+        count[boiler]++;
+        sumTemperature[boiler] += temperature;
+        if (heating) {
+            sumCoilDelta[boiler] += coil - temperature;
+            heatingCount[boiler]++;
+        }
+        lastMillis[boiler] = millis;
+        lastTemperature[boiler] = temperature;
+    }
+
+    private void sample(int boiler) {
+        double hours = (lastMillis[boiler] - startMillis[boiler])/(60.0*60*1000);
+        if (hours <= 0.0) {
+            return;
+        }
+        double rate = (lastTemperature[boiler] - startTemperature[boiler])/hours;
+        double temperature = sumTemperature[boiler]/count[boiler];
+        double coilDelta = sumCoilDelta[boiler]/count[boiler];
+        boolean heating = 2*heatingCount[boiler] > count[boiler];
+        models[boiler].update(lastMillis[boiler]/(60.0*60*1000), lastTemperature[boiler], rate, temperature, coilDelta
+                , heating);
+        updated[boiler] = true;
+        pendingSamples.add(lastMillis[boiler] + ":" + BOILERS[boiler] + ":" + lastTemperature[boiler] + ":" + rate
+                + ":" + temperature + ":" + coilDelta + ":" + (heating ? 1 : 0));
+    }
+
+    /** Adds the new samples, checkpoints and parameters to the batch of the writer */
+    public void write(Transaction transaction) {
+        if (pendingSamples.isEmpty()) {
+            return;
+        }
+        transaction.lpush(SAMPLES, pendingSamples.toArray(new String[pendingSamples.size()]));
+        transaction.ltrim(SAMPLES, 0, SAMPLES_LENGTH - 1);
+        pendingSamples.clear();
+        for (int boiler = 0; boiler < BOILERS.length; boiler++) {
+            if (updated[boiler]) {
+                updated[boiler] = false;
+                ThermalModel model = models[boiler];
+                transaction.hset(CHECKPOINT, BOILERS[boiler], model.checkpoint());
+                String prefix = "thermal." + BOILERS[boiler] + ".";
+                transaction.setex(prefix + "coilPerHour", EXPOSE_SECONDS, String.valueOf(model.coilPerHour()));
+                transaction.setex(prefix + "lossPerHour", EXPOSE_SECONDS, String.valueOf(model.lossPerHour()));
+                transaction.setex(prefix + "ambient", EXPOSE_SECONDS, String.valueOf(model.ambient()));
+                transaction.setex(prefix + "residual", EXPOSE_SECONDS, String.valueOf(model.lastResidual()));
+                transaction.setex(prefix + "residualRms", EXPOSE_SECONDS, String.valueOf(model.residualRms()));
+                transaction.setex(prefix + "slopeResidualRms", EXPOSE_SECONDS, String.valueOf(model.slopeResidualRms()));
+                TelemetryRouter.INSTANCE.metric(metric(BOILERS[boiler], model));
+            }
+        }
+    }
+
+    private static String metric(String boiler, ThermalModel model) {
+        StringBuilder line = new StringBuilder("thermal,boiler=").append(boiler).append(" samples=")
+                .append(model.samples()).append('i');
+        field(line, "coilPerHour", model.coilPerHour());
+        field(line, "lossPerHour", model.lossPerHour());
+        field(line, "ambient", model.ambient());
+        field(line, "residual", model.lastResidual());
+        field(line, "residualRms", model.residualRms());
+        field(line, "slopeResidualRms", model.slopeResidualRms());
+        return line.toString();
+    }
+
+    private static void field(StringBuilder line, String name, double value) {
+        if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+            line.append(',').append(name).append('=').append(value);
+        }
+    }
+
+    /**
+     * Main ThermalReport: replays the recorded thermal.samples through fresh models and prints the fit per boiler,
+     * with the prediction error of the model next to that of the slope baseline (see ThermalModel).
+     */
+    public static void report() {
+        Jedis jedis = new Jedis("localhost");
+        List<String> samples = jedis.lrange(SAMPLES, 0, -1);
+        Map<String, String> checkpoints = jedis.hgetAll(CHECKPOINT);
+        jedis.close();
+        Collections.reverse(samples);
+
+        ThermalModel[] replayed = {new ThermalModel(), new ThermalModel()};
+        for (String sample : samples) {
+            String[] fields = sample.split(":");
+            int boiler = BOILERS[BOILER500].equals(fields[1]) ? BOILER500 : BOILER200;
+            replayed[boiler].update(Long.parseLong(fields[0])/(60.0*60*1000), Double.parseDouble(fields[2])
+                    , Double.parseDouble(fields[3]), Double.parseDouble(fields[4]), Double.parseDouble(fields[5])
+                    , "1".equals(fields[6]));
+        }
+
+        System.out.println("Thermal model replay of " + samples.size() + " samples of " + SAMPLE_MINUTES + " minutes");
+        for (int boiler = 0; boiler < BOILERS.length; boiler++) {
+            ThermalModel model = replayed[boiler];
+            System.out.println(BOILERS[boiler] + ": samples " + model.samples()
+                    + String.format(", coil %.4f/h, loss %.4f/h, ambient %.1f C", model.coilPerHour()
+                    , model.lossPerHour(), model.ambient())
+                    + String.format(", prediction error RMS model %.2f C/h, slope baseline %.2f C/h"
+                    , model.residualRms(), model.slopeResidualRms()));
+            if (checkpoints.containsKey(BOILERS[boiler])) {
+                ThermalModel online = new ThermalModel();
+                online.restore(checkpoints.get(BOILERS[boiler]));
+                System.out.println(String.format("  online checkpoint: coil %.4f/h, loss %.4f/h, ambient %.1f C"
+                        , online.coilPerHour(), online.lossPerHour(), online.ambient()));
+            }
+        }
+    }
+
+    /**
+     * Main ThermalReport synthetic: checks the fit without Redis on a simulated boiler with known parameters. Ten days
+     * with the flow through the coil around noon, then three weeks without heating (the covariance windup case), then
+     * ten days of heating again. Halfway the model is checkpointed and restored into a second model, its fit must stay
+     * equal to the original. Noise of SYNTHETIC_NOISE degrees on every reading.
+     *
+     * @return true when the parameters are recovered within 10% and the checkpoint round trip is exact
+     */
+    public static boolean synthetic() {
+        final double coil = 0.8, loss = 0.02, ambient = 16.0;
+        Random random = new Random(1);
+        ThermalModel model = new ThermalModel();
+        ThermalModel restored = null;
+        double temperature = 40.0;
+        long days = 10 + 21 + 10;
+        long minutes = 0;
+        double maxTrace = 0.0;
+        boolean retVal = true;
+        for (int sample = 0; sample < days*24*60/SAMPLE_MINUTES; sample++) {
+            long day = minutes/(24*60);
+            double hour = (minutes % (24*60))/60.0;
+            boolean heating = (day < 10 || day >= 31) && hour >= 10 && hour < 16;
+            double startMeasured = temperature + random.nextGaussian()*SYNTHETIC_NOISE;
+            double sumTemperature = 0.0, sumCoilDelta = 0.0;
+            for (int minute = 0; minute < SAMPLE_MINUTES; minute++) {
+                double coilDelta = heating ? 10.0 + 2.0*Math.sin(hour) : 0.0;
+                temperature += (coil*coilDelta - loss*(temperature - ambient))/60.0;
+                sumTemperature += temperature + random.nextGaussian()*SYNTHETIC_NOISE;
+                sumCoilDelta += coilDelta + random.nextGaussian()*SYNTHETIC_NOISE;
+            }
+            minutes += SAMPLE_MINUTES;
+            double endMeasured = temperature + random.nextGaussian()*SYNTHETIC_NOISE;
+            double hours = SAMPLE_MINUTES/60.0;
+            ThermalModel[] fitted = restored == null ? new ThermalModel[]{model} : new ThermalModel[]{model, restored};
+            for (ThermalModel fit : fitted) {
+                fit.update(minutes/60.0, endMeasured, (endMeasured - startMeasured)/hours
+                        , sumTemperature/SAMPLE_MINUTES, sumCoilDelta/SAMPLE_MINUTES, heating);
+            }
+            maxTrace = Math.max(maxTrace, model.covarianceTrace());
+            if (day == 20 && restored == null) {
+                restored = new ThermalModel();
+                restored.restore(model.checkpoint());
+            }
+        }
+
+        System.out.println(String.format("Synthetic boiler: coil %.4f/h, loss %.4f/h, ambient %.1f C", coil, loss
+                , ambient));
+        System.out.println(String.format("Fitted: coil %.4f/h, loss %.4f/h, ambient %.1f C, max covariance trace %.1f"
+                , model.coilPerHour(), model.lossPerHour(), model.ambient(), maxTrace)
+                + String.format(", prediction error RMS model %.2f C/h, slope baseline %.2f C/h", model.residualRms()
+                , model.slopeResidualRms()));
+        if (Math.abs(model.coilPerHour() - coil) > 0.1*coil || Math.abs(model.lossPerHour() - loss) > 0.1*loss
+                || Math.abs(model.ambient() - ambient) > 0.1*ambient) {
+            System.out.println("Parameters not recovered");
+            retVal = false;
+        }
+        // the slope baseline starts over after a restore, like the Controller slope after a restart
+        if (restored == null || model.coilPerHour() != restored.coilPerHour()
+                || model.lossPerHour() != restored.lossPerHour() || model.ambient() != restored.ambient()
+                || model.covarianceTrace() != restored.covarianceTrace()
+                || model.residualRms() != restored.residualRms()) {
+            System.out.println("Restored checkpoint diverged from the original model");
+            retVal = false;
+        }
+        return retVal;
+    }
+}
@@ -0,0 +1,183 @@
+import org.apache.commons.math3.stat.regression.SimpleRegression;
+
+/**
+ * RC thermal model of one boiler, fitted online with recursive least squares.
+ *
+ * dT/dt = coil*(Tcoil - T) - loss*T + gain
+ *
+ * T is the boiler temperature, Tcoil the mean of TflowIn and TflowOut, only while the solar flow goes through this
+ * boiler. coil is the coil transfer over the heat capacity (UA/C, per hour), loss the heat loss over the heat capacity
+ * (per hour) and gain/loss the ambient temperature. Temperatures alone cannot separate the heat capacity from the
+ * transfer coefficients, the model gives their ratios, which is what the control needs.
+ *
+ * One update per sample interval (a few minutes, the sensor resolution makes per frame derivatives useless), a
+ * forgetting factor lets the fit follow the season. The state is a few primitive arrays, an update is O(1).
+ * Forgetting inflates the covariance in the directions that are not excited, the coil while the flow goes elsewhere
+ * for days. The trace of P is bounded by MAX_COVARIANCE_TRACE, so the first heating sample after such a period does
+ * not throw the parameters around.
+ *
+ * For comparison every sample is also predicted by a slope baseline, a reimplementation of the Controller method on
+ * this boiler temperature: the SimpleRegression slope of the sampled temperature over the last SLOPE_SAMPLES samples
+ * (Controller.SLOPE_WINDOW_HR), reset when the flow switches. It is not Controller.pipeTSlope itself, that works on
+ * pipe.TflowOut. Both prediction errors are kept as an exponentially weighted RMS.
+ */
+public class ThermalModel {
+
+    public final static double FORGETTING = 0.9995;
+    public final static int PARAMETERS = 3;
+    private final static double INITIAL_COVARIANCE = 1000.0;
+    private final static double MAX_COVARIANCE_TRACE = PARAMETERS*INITIAL_COVARIANCE;
+    private final static int SLOPE_SAMPLES = (int)(Controller.SLOPE_WINDOW_HR*60/ThermalEstimator.SAMPLE_MINUTES);
+
+    /** coil, -loss, gain */
+    private final double[] theta = new double[PARAMETERS];
+    private final double[] p = new double[PARAMETERS*PARAMETERS];
+    private final double[] x = new double[PARAMETERS], px = new double[PARAMETERS];
+    private long samples;
+    private double residualSquares, slopeResidualSquares, residualWeight, slopeResidualWeight, lastResidual;
+
+    private final SimpleRegression slope = new SimpleRegression();
+    private final double[] slopeHours = new double[SLOPE_SAMPLES], slopeTemperatures = new double[SLOPE_SAMPLES];
+    private int slopeCount, slopeIndex;
+    private boolean lastHeating;
+
+    public ThermalModel() {
+        for (int i = 0; i < PARAMETERS; i++) {
+            p[i*PARAMETERS + i] = INITIAL_COVARIANCE;
+        }
+    }
+
+    /**
+     * @param rate measured dT/dt over the sample, degrees per hour
+     * @param temperature mean boiler temperature over the sample
+     * @param coilDelta mean Tcoil - T over the sample, 0 for the time the flow went elsewhere
+     */
+    public void update(double endHours, double endTemperature, double rate, double temperature, double coilDelta
+            , boolean heating) {
+        x[0] = coilDelta;
+        x[1] = temperature;
+        x[2] = 1.0;
+
+        // the prediction of the Controller slope, before this sample is added to it
+        if (heating != lastHeating) {
+            slopeCount = 0;
+            lastHeating = heating;
+        }
+        if (slopeCount >= 3) {
+            slope.clear();
+            for (int i = 0; i < slopeCount; i++) {
+                slope.addData(slopeHours[i], slopeTemperatures[i]);
+            }
+            double error = rate - slope.getSlope();
+            slopeResidualSquares = FORGETTING*slopeResidualSquares + error*error;
+            slopeResidualWeight = FORGETTING*slopeResidualWeight + 1.0;
+        }
+        slopeHours[slopeIndex] = endHours;
+        slopeTemperatures[slopeIndex] = endTemperature;
+        slopeIndex = (slopeIndex + 1) % SLOPE_SAMPLES;
+        slopeCount = Math.min(slopeCount + 1, SLOPE_SAMPLES);
+
+        // recursive least squares: K = P x / (lambda + x'P x), theta += K e, P = (P - K x'P) / lambda
+        double denominator = FORGETTING;
+        for (int i = 0; i < PARAMETERS; i++) {
+            px[i] = 0.0;
+            for (int j = 0; j < PARAMETERS; j++) {
+                px[i] += p[i*PARAMETERS + j]*x[j];
+            }
+            denominator += x[i]*px[i];
+        }
+        lastResidual = rate - predict(coilDelta, temperature);
+        for (int i = 0; i < PARAMETERS; i++) {
+            theta[i] += px[i]/denominator*lastResidual;
+        }
+        // P is symmetric, so x'P is px transposed
+        for (int i = 0; i < PARAMETERS; i++) {
+            for (int j = 0; j < PARAMETERS; j++) {
+                p[i*PARAMETERS + j] = (p[i*PARAMETERS + j] - px[i]*px[j]/denominator)/FORGETTING;
+            }
+        }
+        double trace = covarianceTrace();
+        if (trace > MAX_COVARIANCE_TRACE) {
+            for (int i = 0; i < p.length; i++) {
+                p[i] *= MAX_COVARIANCE_TRACE/trace;
+            }
+        }
+        if (samples > PARAMETERS) {
+            residualSquares = FORGETTING*residualSquares + lastResidual*lastResidual;
+            residualWeight = FORGETTING*residualWeight + 1.0;
+        }
+        samples++;
+    }
+
+    /** dT/dt in degrees per hour */
+    public double predict(double coilDelta, double temperature) {
+        return theta[0]*coilDelta + theta[1]*temperature + theta[2];
+    }
+
+    public double coilPerHour() {
+        return theta[0];
+    }
+
+    public double lossPerHour() {
+        return -theta[1];
+    }
+
+    /** The temperature the boiler cools down to, NaN while no loss has been fitted */
+    public double ambient() {
+        return theta[1] < 0.0 ? -theta[2]/theta[1] : Double.NaN;
+    }
+
+    public double covarianceTrace() {
+        double retVal = 0.0;
+        for (int i = 0; i < PARAMETERS; i++) {
+            retVal += p[i*PARAMETERS + i];
+        }
+        return retVal;
+    }
+
+    public long samples() {
+        return samples;
+    }
+
+    /** A priori error of the last sample, degrees per hour */
+    public double lastResidual() {
+        return lastResidual;
+    }
+
+    public double residualRms() {
+        return residualWeight > 0.0 ? Math.sqrt(residualSquares/residualWeight) : Double.NaN;
+    }
+
+    public double slopeResidualRms() {
+        return slopeResidualWeight > 0.0 ? Math.sqrt(slopeResidualSquares/slopeResidualWeight) : Double.NaN;
+    }
+
+    /** theta, P and the residual sums, comma separated */
+    public String checkpoint() {
+        StringBuilder retVal = new StringBuilder().append(samples);
+        for (double value : theta) {
+            retVal.append(',').append(value);
+        }
+        for (double value : p) {
+            retVal.append(',').append(value);
+        }
+        return retVal.append(',').append(residualSquares).append(',').append(residualWeight)
+                .append(',').append(slopeResidualSquares).append(',').append(slopeResidualWeight).toString();
+    }
+
+    public void restore(String checkpoint) {
+        String[] values = checkpoint.split(",");
+        int field = 0;
+        samples = Long.parseLong(values[field++]);
+        for (int i = 0; i < theta.length; i++) {
+            theta[i] = Double.parseDouble(values[field++]);
+        }
+        for (int i = 0; i < p.length; i++) {
+            p[i] = Double.parseDouble(values[field++]);
+        }
+        residualSquares = Double.parseDouble(values[field++]);
+        residualWeight = Double.parseDouble(values[field++]);
+        slopeResidualSquares = Double.parseDouble(values[field++]);
+        slopeResidualWeight = Double.parseDouble(values[field]);
+    }
+}
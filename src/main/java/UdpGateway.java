@@ -0,0 +1,382 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Central ingest gateway for the FluxLogger and LogstashLogger traffic of several sites (Main gateway).
+ *
+ * Sites point influx.ip and logstash.ip at the gateway. Each reader thread owns an Influx and a Logstash channel and
+ * copies every record into a batch buffer, with the site of the sender added: a site tag after the measurement of an
+ * Influx line, a "[time] [site] " prefix for a log line. The site is looked up by sender address
+ * (gateway.site.[ip]=[name]), unknown senders are tagged with their address.
+ * Full batches go to a writer per sink. Influx batches are posted to gateway.influx.url (the local InfluxDB /write
+ * endpoint), log batches and, without an Influx url, Influx batches are appended to daily files in gateway.archive.dir.
+ *
+ * Steady state does not allocate, the batch buffers cycle through a fixed pool. When the writers fall behind and the
+ * pool is empty a reader drops its batch instead of blocking. Dropped counts those batches and oversized datagrams.
+ * The counters are sent as a gateway metric every STATISTICS_MS, through the TelemetryRouter of the gateway itself.
+ *
+ * All readers bind the same ports with SO_REUSEPORT, so the kernel spreads the senders over the cores. The option
+ * is looked up at runtime (JDK 9+ on Linux), without it there is one reader thread.
+ *
+ * Configuration in /etc/iot.conf: gateway.influx.port, gateway.logstash.port, gateway.threads, gateway.influx.url,
+ * gateway.archive.dir and gateway.site.[ip].
+ */
+public class UdpGateway {
+
+    private final static int MAX_DATAGRAM = 65536;
+    private final static int BATCH_SIZE = 1024*1024;
+    private final static int BUFFERS_PER_READER = 4;
+    private final static long FLUSH_MS = 200;
+    private final static long STATISTICS_MS = 10000;
+
+    private final int influxPort, logstashPort, threads;
+    private final String influxUrl;
+    private final File archiveDir;
+    /** Configured in the constructor, read only by the readers */
+    private final Map<InetAddress, byte[]> sites = new HashMap<>();
+
+    private final Sink influx, logs;
+
+    final AtomicLong datagrams = new AtomicLong(), records = new AtomicLong(), dropped = new AtomicLong()
+            , batches = new AtomicLong(), sinkErrors = new AtomicLong();
+
+    public UdpGateway() {
+        Properties prop = Properties.current();
+        influxPort = Integer.parseInt(prop.getProperty("gateway.influx.port", "8087"));
+        logstashPort = Integer.parseInt(prop.getProperty("gateway.logstash.port", "9000"));
+        threads = reusePort() == null ? 1
+                : Integer.parseInt(prop.getProperty("gateway.threads"
+                        , String.valueOf(Runtime.getRuntime().availableProcessors())));
+        if (threads < 1) {
+            throw new IllegalArgumentException("gateway.threads must be at least 1, not " + threads);
+        }
+        influxUrl = prop.getProperty("gateway.influx.url");
+        archiveDir = new File(prop.getProperty("gateway.archive.dir", "/var/lib/iot-gateway"));
+        for (String key : prop.stringPropertyNames()) {
+            if (key.startsWith("gateway.site.")) {
+                try {
+                    sites.put(InetAddress.getByName(key.substring("gateway.site.".length()))
+                            , prop.getProperty(key).getBytes(StandardCharsets.US_ASCII));
+                } catch (IOException e) {
+                    LogstashLogger.INSTANCE.error("Gateway site with unknown address " + key);
+                }
+            }
+        }
+        influx = new Sink(influxUrl == null ? "influx" : null);
+        logs = new Sink("log");
+    }
+
+    public void run() throws IOException {
+        archiveDir.mkdirs();
+        for (int i = 0; i < threads; i++) {
+            Thread reader = new Thread(new Reader(openChannel(influxPort), openChannel(logstashPort)), "GatewayReader" + i);
+            reader.start();
+        }
+        new Thread(influx, "GatewayInfluxWriter").start();
+        new Thread(logs, "GatewayLogWriter").start();
+        LogstashLogger.INSTANCE.info("Gateway listening on " + influxPort + " (influx) and " + logstashPort
+                + " (logstash) with " + threads + " reader(s)");
+
+        long lastDatagrams = 0;
+        while (true) {
+            try {
+                Thread.sleep(STATISTICS_MS);
+            } catch (InterruptedException e) {
+            }
+            long current = datagrams.get();
+            TelemetryRouter.INSTANCE.metric("gateway datagramsPerSecond="
+                    + (current - lastDatagrams)*1000.0/STATISTICS_MS + ",records=" + records.get() + "i,batches=" + batches.get() + "i,dropped=" + dropped.get()
+                    + "i,sinkErrors=" + sinkErrors.get() + "i");
+            lastDatagrams = current;
+        }
+    }
+
+    private DatagramChannel openChannel(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        SocketOption<Boolean> reusePort = reusePort();
+        if (reusePort != null) {
+            channel.setOption(reusePort, true);
+        }
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 4*1024*1024);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePort() {
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            DatagramChannel probe = DatagramChannel.open();
+            try {
+                return probe.supportedOptions().contains(option) ? option : null;
+            } finally {
+                probe.close();
+            }
+        } catch (ReflectiveOperationException | IOException e) {
+            return null;
+        }
+    }
+
+    /** @return the configured gateway.site name of the sender, its address when unknown (not cached) */
+    private byte[] site(SocketAddress sender) {
+        InetAddress address = ((InetSocketAddress)sender).getAddress();
+        byte[] retVal = sites.get(address);
+        return retVal != null ? retVal : address.getHostAddress().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private class Reader implements Runnable {
+        private final DatagramChannel influxChannel, logstashChannel;
+        private final ByteBuffer datagram = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        private ByteBuffer influxBatch, logBatch;
+        private long influxBatchStart, logBatchStart;
+
+        Reader(DatagramChannel influxChannel, DatagramChannel logstashChannel) {
+            this.influxChannel = influxChannel;
+            this.logstashChannel = logstashChannel;
+            for (int i = 0; i < BUFFERS_PER_READER; i++) {
+                influx.free.add(ByteBuffer.allocate(BATCH_SIZE));
+                logs.free.add(ByteBuffer.allocate(BATCH_SIZE));
+            }
+            influxBatch = influx.free.poll();
+            logBatch = logs.free.poll();
+        }
+
+        @Override
+        public void run() {
+            try (Selector selector = Selector.open()) {
+                influxChannel.register(selector, SelectionKey.OP_READ);
+                logstashChannel.register(selector, SelectionKey.OP_READ);
+                while (true) {
+                    selector.select(FLUSH_MS);
+                    selector.selectedKeys().clear();
+                    boolean received = true;
+                    while (received) {
+                        received = receive(influxChannel, true) | receive(logstashChannel, false);
+                    }
+                    long now = System.currentTimeMillis();
+                    if (influxBatch.position() > 0 && now - influxBatchStart > FLUSH_MS) {
+                        influxBatch = influx.submit(influxBatch);
+                    }
+                    if (logBatch.position() > 0 && now - logBatchStart > FLUSH_MS) {
+                        logBatch = logs.submit(logBatch);
+                    }
+                }
+            } catch (IOException e) {
+                LogstashLogger.INSTANCE.fatal("Gateway reader stopped " + e.toString());
+            }
+        }
+
+        private boolean receive(DatagramChannel channel, boolean isInflux) throws IOException {
+            datagram.clear();
+            SocketAddress sender = channel.receive(datagram);
+            if (sender == null) {
+                return false;
+            }
+            datagrams.incrementAndGet();
+            datagram.flip();
+            byte[] site = site(sender);
+            // worst case every other byte ends a line that gets the site tag
+            int required = datagram.remaining() + (datagram.remaining()/2 + 1)*(SITE_TAG.length + site.length + 1) + 32;
+            if (required > BATCH_SIZE) {
+                dropped.incrementAndGet();
+                return true;
+            }
+            if (isInflux) {
+                if (influxBatch.remaining() < required) {
+                    influxBatch = influx.submit(influxBatch);
+                }
+                if (influxBatch.position() == 0) {
+                    influxBatchStart = System.currentTimeMillis();
+                }
+                records.addAndGet(appendLineProtocol(datagram, site, influxBatch));
+            } else {
+                if (logBatch.remaining() < required) {
+                    logBatch = logs.submit(logBatch);
+                }
+                if (logBatch.position() == 0) {
+                    logBatchStart = System.currentTimeMillis();
+                }
+                appendLog(datagram, site, System.currentTimeMillis(), logBatch);
+                records.incrementAndGet();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Copies the lines of an Influx datagram into the batch with ",site=[site]" after the measurement, the
+     * measurement ends at the first unescaped comma or space.
+     * @return the number of lines
+     */
+    static int appendLineProtocol(ByteBuffer datagram, byte[] site, ByteBuffer batch) {
+        int lines = 0;
+        boolean inMeasurement = true, escaped = false, empty = true;
+        while (datagram.hasRemaining()) {
+            byte b = datagram.get();
+            if (b == '\n') {
+                if (!empty) {
+                    batch.put((byte)'\n');
+                    lines++;
+                }
+                inMeasurement = true;
+                empty = true;
+                continue;
+            }
+            if (b == '\r') {
+                continue;
+            }
+            if (inMeasurement && !escaped && (b == ',' || b == ' ')) {
+                batch.put(SITE_TAG).put(site);
+                inMeasurement = false;
+            }
+            escaped = b == '\\' && !escaped;
+            batch.put(b);
+            empty = false;
+        }
+        if (!empty) {
+            if (inMeasurement) {
+                // a line without fields is invalid, keep it as is for the archive
+                batch.put(SITE_TAG).put(site);
+            }
+            batch.put((byte)'\n');
+            lines++;
+        }
+        return lines;
+    }
+
+    private final static byte[] SITE_TAG = ",site=".getBytes(StandardCharsets.US_ASCII);
+
+    /** [epoch millis] [site] [log line] */
+    static void appendLog(ByteBuffer datagram, byte[] site, long time, ByteBuffer batch) {
+        appendDigits(time, batch);
+        batch.put((byte)' ').put(site).put((byte)' ');
+        while (datagram.hasRemaining()) {
+            byte b = datagram.get();
+            batch.put(b == '\n' || b == '\r' ? (byte)' ' : b);
+        }
+        batch.put((byte)'\n');
+    }
+
+    private static void appendDigits(long value, ByteBuffer batch) {
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            batch.put((byte)('0' + (value / divisor) % 10));
+            divisor /= 10;
+        }
+    }
+
+    /** Bounded queue of full batches with one writer thread, the archive file is rotated daily */
+    private class Sink implements Runnable {
+        /** Every reader adds BUFFERS_PER_READER buffers, they are either free, full or in use by a reader */
+        final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFERS_PER_READER*threads);
+        private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(BUFFERS_PER_READER*threads);
+        /** Archive file prefix, null posts to gateway.influx.url */
+        private final String archive;
+        private final SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+        private String currentDay;
+        private FileChannel file;
+
+        Sink(String archive) {
+            this.archive = archive;
+        }
+
+        /** @return an empty batch buffer, the same one cleared when none is free (the batch is dropped) */
+        ByteBuffer submit(ByteBuffer batch) {
+            ByteBuffer next = free.poll();
+            if (next == null) {
+                dropped.incrementAndGet();
+                batch.clear();
+                return batch;
+            }
+            full.add(batch);
+            return next;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                ByteBuffer batch;
+                try {
+                    batch = full.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (batch == null) {
+                    continue;
+                }
+                try {
+                    batch.flip();
+                    if (archive == null) {
+                        post(batch);
+                    } else {
+                        append(batch);
+                    }
+                    batches.incrementAndGet();
+                } catch (IOException e) {
+                    sinkErrors.incrementAndGet();
+                    LogstashLogger.INSTANCE.error("Gateway " + (archive == null ? "influx" : archive)
+                            + " write failed " + e.toString());
+                }
+                batch.clear();
+                free.add(batch);
+            }
+        }
+
+        private void post(ByteBuffer batch) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection)new URL(influxUrl).openConnection();
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setFixedLengthStreamingMode(batch.remaining());
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(batch.array(), batch.arrayOffset() + batch.position(), batch.remaining());
+            }
+            int status = connection.getResponseCode();
+            connection.disconnect();
+            if (status / 100 != 2) {
+                throw new IOException("InfluxDB responded " + status);
+            }
+        }
+
+        private void append(ByteBuffer batch) throws IOException {
+            String today = day.format(new Date());
+            if (!today.equals(currentDay)) {
+                if (file != null) {
+                    file.close();
+                }
+                file = new RandomAccessFile(new File(archiveDir, archive + "-" + today + ".log"), "rw").getChannel();
+                file.position(file.size());
+                currentDay = today;
+            }
+            while (batch.hasRemaining()) {
+                file.write(batch);
+            }
+        }
+    }
+}